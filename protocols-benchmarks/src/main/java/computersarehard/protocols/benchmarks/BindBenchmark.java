@@ -0,0 +1,55 @@
+package computersarehard.protocols.benchmarks;
+
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.Protocols;
+
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalAccessor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares dispatch through the protocol's dispatcher with a handle bound to the receiver's type, for a receiver whose
+ * implementation is registered for one of its interfaces.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@State(Scope.Benchmark)
+public class BindBenchmark {
+    private Format dispatcher;
+    private Format bound;
+    private Object value;
+
+    @Setup
+    public void setup () {
+        Protocol<Format> protocol = Protocols.define(Format.class);
+        protocol.extend(Object.class, value -> "object");
+        protocol.extend(TemporalAccessor.class, value -> "temporal");
+        dispatcher = protocol.getDispatcher();
+        bound = protocol.bind(LocalDateTime.class);
+        value = LocalDateTime.of(1970, 1, 1, 0, 0);
+    }
+
+    @Benchmark
+    public String dispatcher () {
+        return dispatcher.format(value);
+    }
+
+    @Benchmark
+    public String bound () {
+        return bound.format(value);
+    }
+}
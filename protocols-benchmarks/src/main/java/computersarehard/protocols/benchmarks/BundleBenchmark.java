@@ -0,0 +1,87 @@
+package computersarehard.protocols.benchmarks;
+
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.ProtocolBundle;
+import computersarehard.protocols.Protocols;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares invoking three protocols on the same values through their own dispatchers, which look up the receiver's
+ * type once per protocol, with resolving all three implementations through a bundle once per value.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@State(Scope.Benchmark)
+public class BundleBenchmark {
+    private final Object[] values = {"value", 1, new ArrayList<>(), new HashMap<>(), BigDecimal.ONE};
+
+    private Format format;
+    private Describe describe;
+    private Measure measure;
+    private ProtocolBundle bundle;
+
+    @Setup
+    public void setup () {
+        bundle = Protocols.bundle(Format.class, Describe.class, Measure.class);
+        Protocol<Format> formatProtocol = bundle.get(Format.class);
+        formatProtocol.extend(Object.class, value -> "object");
+        formatProtocol.extend(String.class, value -> "string");
+        Protocol<Describe> describeProtocol = bundle.get(Describe.class);
+        describeProtocol.extend(Object.class, value -> "object");
+        describeProtocol.extend(Number.class, value -> "number");
+        Protocol<Measure> measureProtocol = bundle.get(Measure.class);
+        measureProtocol.extend(Object.class, value -> 1);
+        measureProtocol.extend(Collection.class, value -> 2);
+        format = formatProtocol.getDispatcher();
+        describe = describeProtocol.getDispatcher();
+        measure = measureProtocol.getDispatcher();
+    }
+
+    @Benchmark
+    public int dispatchers () {
+        int result = 0;
+        for (Object value : values) {
+            result += format.format(value).length() + describe.describe(value).length() + measure.measure(value);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int bundle () {
+        int result = 0;
+        for (Object value : values) {
+            ProtocolBundle.Implementations implementations = bundle.resolve(value);
+            result += implementations.get(Format.class).format(value).length()
+                + implementations.get(Describe.class).describe(value).length()
+                + implementations.get(Measure.class).measure(value);
+        }
+        return result;
+    }
+
+    public interface Describe {
+        String describe (Object value);
+    }
+
+    public interface Measure {
+        int measure (Object value);
+    }
+}
@@ -0,0 +1,76 @@
+package computersarehard.protocols.benchmarks;
+
+import computersarehard.protocols.CodeGenerator;
+import computersarehard.protocols.DispatchEngine;
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.ProtocolOptions;
+import computersarehard.protocols.Protocols;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of generating dispatcher classes with each code generator: the time to define a batch of
+ * protocols and the metaspace each defined protocol occupies. Protocols are defined with the invokedynamic engine,
+ * which generates a class for every define.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@State(Scope.Benchmark)
+public class DefineBenchmark {
+    @Param({"JAVASSIST", "BYTECODE"})
+    public CodeGenerator generator;
+
+    @Param({"500"})
+    public int protocols;
+
+    /**
+     * Reports the metaspace used per defined protocol alongside the time.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Metaspace {
+        public long metaspaceBytesPerProtocol;
+    }
+
+    @Benchmark
+    public List<Protocol<Format>> define (Metaspace metaspace) {
+        ProtocolOptions options = ProtocolOptions.defaults()
+            .withEngine(DispatchEngine.INVOKEDYNAMIC)
+            .withCodeGenerator(generator);
+        long before = metaspaceUsed();
+        List<Protocol<Format>> defined = new ArrayList<>(protocols);
+        for (int i = 0; i < protocols; i++) {
+            defined.add(Protocols.define(Format.class, options));
+        }
+        metaspace.metaspaceBytesPerProtocol = (metaspaceUsed() - before) / protocols;
+        return defined;
+    }
+
+    private static long metaspaceUsed () {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,150 @@
+package computersarehard.protocols.benchmarks;
+
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.Protocols;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the overhead of a call through a protocol's dispatcher with other ways to dispatch on the receiver's type,
+ * for call sites that see 1 (monomorphic), 2 (bimorphic), 8 or 64 (megamorphic) receiver types in turn:
+ *
+ * * virtualCall: the receiver implements the method itself, the baseline no dispatcher can beat.
+ * * instanceofChain: an if/else chain of instanceof checks in a class generated per type set.
+ * * proxy: a {@link Proxy} whose handler looks the implementation up in a map and invokes it reflectively.
+ * * classValue: a {@link ClassValue} holding each type's implementation.
+ * * protocol: the protocol's dispatcher.
+ *
+ * Every implementation returns a constant, so the results show the cost of dispatch. Each operation is a single call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    @Param({"1", "2", "8", "64"})
+    public int types;
+
+    private Object[] values;
+    private int next;
+
+    private Measure instanceofChain;
+    private Measure proxy;
+    private ClassValue<Measure> classValue;
+    private Measure protocol;
+
+    @Setup
+    public void setup () throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.insertClassPath(new ClassClassPath(DispatchBenchmark.class));
+        ClassLoader loader = DispatchBenchmark.class.getClassLoader();
+        String prefix = DispatchBenchmark.class.getName() + "$$Receiver" + System.nanoTime();
+
+        // Receivers of distinct classes which also implement the method themselves for the virtual call
+        values = new Object[types];
+        StringBuilder chain = new StringBuilder("public int measure (Object value) {");
+        Map<Class<?>, Measure> implementations = new HashMap<>();
+        for (int i = 0; i < types; i++) {
+            CtClass type = pool.makeClass(prefix + i);
+            type.addInterface(pool.get(Sized.class.getName()));
+            type.addConstructor(CtNewConstructor.defaultConstructor(type));
+            type.addMethod(CtNewMethod.make("public int size () { return " + i + "; }", type));
+            Class<?> receiverClass = type.toClass(loader, null);
+            values[i] = receiverClass.getConstructor().newInstance();
+
+            int result = i;
+            implementations.put(receiverClass, value -> result);
+            chain.append("if ($1 instanceof ").append(type.getName()).append(") return ").append(i).append(';');
+        }
+
+        CtClass chainClass = pool.makeClass(prefix + "Chain");
+        chainClass.addInterface(pool.get(Measure.class.getName()));
+        chainClass.addConstructor(CtNewConstructor.defaultConstructor(chainClass));
+        chainClass.addMethod(CtNewMethod.make(chain.append("return -1;}").toString(), chainClass));
+        Class<?> chainType = chainClass.toClass(loader, null);
+        instanceofChain = (Measure) chainType.getConstructor().newInstance();
+
+        InvocationHandler handler = (proxy, method, args) -> method.invoke(implementations.get(args[0].getClass()),
+            args);
+        proxy = (Measure) Proxy.newProxyInstance(loader, new Class<?>[] {Measure.class}, handler);
+
+        classValue = new ClassValue<Measure>() {
+            @Override
+            protected Measure computeValue (Class<?> type) {
+                return implementations.get(type);
+            }
+        };
+
+        Protocol<Measure> measure = Protocols.define(Measure.class);
+        measure.extendAll(implementations);
+        protocol = measure.getDispatcher();
+    }
+
+    private Object nextValue () {
+        // The number of types is a power of two
+        return values[next++ & (values.length - 1)];
+    }
+
+    @Benchmark
+    public int virtualCall () {
+        return ((Sized) nextValue()).size();
+    }
+
+    @Benchmark
+    public int instanceofChain () {
+        return instanceofChain.measure(nextValue());
+    }
+
+    @Benchmark
+    public int proxy () {
+        return proxy.measure(nextValue());
+    }
+
+    @Benchmark
+    public int classValue () {
+        Object value = nextValue();
+        return classValue.get(value.getClass()).measure(value);
+    }
+
+    @Benchmark
+    public int protocol () {
+        return protocol.measure(nextValue());
+    }
+
+    /**
+     * Protocol dispatched by the benchmark.
+     */
+    public interface Measure {
+        int measure (Object value);
+    }
+
+    /**
+     * Implemented by the receivers themselves.
+     */
+    public interface Sized {
+        int size ();
+    }
+}
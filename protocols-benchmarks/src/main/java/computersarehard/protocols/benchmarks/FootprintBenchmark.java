@@ -0,0 +1,122 @@
+package computersarehard.protocols.benchmarks;
+
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.Protocols;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the heap taken by resolving every type of a large domain model in many protocols, for protocols that can
+ * still be extended (a per protocol cache keyed by class) and for frozen ones (an array per protocol indexed by class
+ * ID). The time to resolve the whole matrix is the primary result. The heap retained by the protocols, measured after
+ * a full collection, and the footprint the protocols report are secondary results in MB.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-opens=java.base/java.lang=ALL-UNNAMED", "-Xmx3g"})
+@State(Scope.Benchmark)
+public class FootprintBenchmark {
+    private static final int INTERFACES = 20;
+    private static final int BASES = 100;
+
+    @Param({"1000"})
+    public int protocols;
+
+    @Param({"5000"})
+    public int types;
+
+    @Param({"mutable", "frozen"})
+    public String layout;
+
+    private final List<Class<?>> interfaces = new ArrayList<>();
+    private final List<Class<?>> domain = new ArrayList<>();
+
+    @Setup
+    public void setup () throws Exception {
+        // A domain model loaded by the protocol interface's class loader: leaf classes extending base classes which
+        // implement an interface each.
+        ClassPool pool = new ClassPool(true);
+        ClassLoader loader = Format.class.getClassLoader();
+        String prefix = FootprintBenchmark.class.getName() + "$$Domain" + System.nanoTime();
+        CtClass[] ctInterfaces = new CtClass[INTERFACES];
+        for (int i = 0; i < INTERFACES; i++) {
+            ctInterfaces[i] = pool.makeInterface(prefix + "$Interface" + i);
+            interfaces.add(ctInterfaces[i].toClass(loader, null));
+        }
+        CtClass[] bases = new CtClass[BASES];
+        for (int i = 0; i < BASES; i++) {
+            bases[i] = pool.makeClass(prefix + "$Base" + i);
+            bases[i].addInterface(ctInterfaces[i % INTERFACES]);
+            bases[i].toClass(loader, null);
+        }
+        for (int i = 0; i < types; i++) {
+            domain.add(pool.makeClass(prefix + "$Type" + i, bases[i % BASES]).toClass(loader, null));
+        }
+    }
+
+    @Benchmark
+    public void resolve (Footprint footprint) {
+        long before = usedHeap();
+        List<Protocol<Format>> defined = new ArrayList<>();
+        for (int p = 0; p < protocols; p++) {
+            Protocol<Format> protocol = Protocols.define(Format.class);
+            // Every protocol implements a quarter of the interfaces
+            for (int i = p % 4; i < INTERFACES; i += 4) {
+                protocol.extend(interfaces.get(i), value -> "implemented");
+            }
+            protocol.extend(Object.class, value -> "object");
+            if (layout.equals("frozen")) {
+                protocol.freeze();
+            }
+            for (Class<?> type : domain) {
+                protocol.satisfies(type);
+            }
+            defined.add(protocol);
+        }
+
+        long reported = 0;
+        for (Protocol<Format> protocol : defined) {
+            reported += protocol.getStatistics().getFootprint();
+        }
+        footprint.retainedMB = (usedHeap() - before) / 1e6;
+        footprint.reportedMB = reported / 1e6;
+        defined.clear();
+    }
+
+    private static long usedHeap () {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The secondary results. JMH sums them over the measurement iterations.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public double retainedMB;
+        public double reportedMB;
+    }
+}
@@ -0,0 +1,8 @@
+package computersarehard.protocols.benchmarks;
+
+/**
+ * Protocol dispatched by the benchmarks.
+ */
+public interface Format {
+    String format (Object value);
+}
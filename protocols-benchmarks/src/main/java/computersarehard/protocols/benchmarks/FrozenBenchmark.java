@@ -0,0 +1,71 @@
+package computersarehard.protocols.benchmarks;
+
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.Protocols;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares dispatch through a protocol that can still be extended with dispatch through a frozen protocol, for
+ * a receiver with a registered implementation and for one resolved through the type hierarchy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@State(Scope.Benchmark)
+public class FrozenBenchmark {
+    @Param({"registered", "resolved"})
+    public String receiver;
+
+    private Format mutable;
+    private Format frozen;
+    private Object value;
+
+    @Setup
+    public void setup () {
+        mutable = define().getDispatcher();
+
+        Protocol<Format> protocol = define();
+        protocol.freeze();
+        frozen = protocol.getDispatcher();
+
+        value = receiver.equals("registered") ? "value" : new ArrayList<>();
+    }
+
+    @Benchmark
+    public String mutable () {
+        return mutable.format(value);
+    }
+
+    @Benchmark
+    public String frozen () {
+        return frozen.format(value);
+    }
+
+    private static Protocol<Format> define () {
+        Protocol<Format> protocol = Protocols.define(Format.class);
+        // Constant results keep the cost of the implementations out of the measurement.
+        protocol.extend(Object.class, value -> "object");
+        protocol.extend(Void.class, value -> "null");
+        protocol.extend(String.class, value -> "string");
+        protocol.extend(Integer.class, value -> "integer");
+        protocol.extend(Collection.class, value -> "collection");
+        return protocol;
+    }
+}
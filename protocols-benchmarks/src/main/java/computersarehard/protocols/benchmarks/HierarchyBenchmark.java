@@ -0,0 +1,110 @@
+package computersarehard.protocols.benchmarks;
+
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.Protocols;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures dispatch on receivers whose implementation is not registered for their own class: null values dispatched
+ * to {@link Void}, a {@link StringBuilder} dispatched to {@link CharSequence} and the bottom of a deep class hierarchy
+ * dispatched to an interface of its top. An instanceof check and a {@link ClassValue} lookup are the baselines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@State(Scope.Benchmark)
+public class HierarchyBenchmark {
+    @Param({"null", "interface", "deep"})
+    public String receiver;
+
+    private Format protocol;
+    private ClassValue<Format> classValue;
+    private Object value;
+
+    @Setup
+    public void setup () {
+        Protocol<Format> format = Protocols.define(Format.class);
+        format.extend(Void.class, value -> "null");
+        format.extend(CharSequence.class, value -> "chars");
+        format.extend(Deep.class, value -> "deep");
+        protocol = format.getDispatcher();
+
+        // Resolved through the protocol once, so the baseline only measures the lookup
+        classValue = new ClassValue<Format>() {
+            @Override
+            protected Format computeValue (Class<?> type) {
+                return format.bind(type);
+            }
+        };
+
+        switch (receiver) {
+            case "null":
+                value = null;
+                break;
+            case "interface":
+                value = new StringBuilder("value");
+                break;
+            default:
+                value = new Level7();
+        }
+    }
+
+    @Benchmark
+    public String instanceofCheck () {
+        Object value = this.value;
+        return value == null ? "null" : value instanceof CharSequence ? "chars" : value instanceof Deep ? "deep" : null;
+    }
+
+    @Benchmark
+    public String classValue () {
+        Object value = this.value;
+        return classValue.get(value == null ? Void.class : value.getClass()).format(value);
+    }
+
+    @Benchmark
+    public String protocol () {
+        return protocol.format(value);
+    }
+
+    public interface Deep {
+    }
+
+    public static class Level0 implements Deep {
+    }
+
+    public static class Level1 extends Level0 {
+    }
+
+    public static class Level2 extends Level1 {
+    }
+
+    public static class Level3 extends Level2 {
+    }
+
+    public static class Level4 extends Level3 {
+    }
+
+    public static class Level5 extends Level4 {
+    }
+
+    public static class Level6 extends Level5 {
+    }
+
+    public static class Level7 extends Level6 {
+    }
+}
@@ -0,0 +1,70 @@
+package computersarehard.protocols.benchmarks;
+
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.Protocols;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the startup cost of registering an implementation for each of many generated types, one at a time and as
+ * a single batch.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@State(Scope.Benchmark)
+public class RegistrationBenchmark {
+    @Param({"10000"})
+    public int types;
+
+    private Map<Class<?>, Format> implementations;
+
+    @Setup
+    public void setup () throws Exception {
+        // Stand-ins for a module of generated DTOs
+        ClassPool pool = new ClassPool(true);
+        ClassLoader loader = new ClassLoader(RegistrationBenchmark.class.getClassLoader()) {
+        };
+        Format implementation = value -> "dto";
+        implementations = new LinkedHashMap<>();
+        for (int i = 0; i < types; i++) {
+            CtClass type = pool.makeClass(RegistrationBenchmark.class.getName() + "$$Dto" + i);
+            implementations.put(type.toClass(loader, null), implementation);
+            type.detach();
+        }
+    }
+
+    @Benchmark
+    public Protocol<Format> extend () {
+        Protocol<Format> protocol = Protocols.define(Format.class);
+        for (Map.Entry<Class<?>, Format> entry : implementations.entrySet()) {
+            protocol.extend(entry.getKey(), entry.getValue());
+        }
+        return protocol;
+    }
+
+    @Benchmark
+    public Protocol<Format> extendAll () {
+        Protocol<Format> protocol = Protocols.define(Format.class);
+        protocol.extendAll(implementations);
+        return protocol;
+    }
+}
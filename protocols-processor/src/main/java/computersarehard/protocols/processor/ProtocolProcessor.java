@@ -0,0 +1,307 @@
+package computersarehard.protocols.processor;
+
+import computersarehard.protocols.Protocols;
+import computersarehard.protocols.annotation.Protocol;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates the dispatcher of every interface annotated with {@link Protocol} at build time.
+ *
+ * The generated class has the name and the behavior of the class {@link Protocols#define(Class)} generates with the
+ * default options: it lives next to the interface, extends {@link Protocols.Dispatcher} and implements every protocol
+ * method by invoking the implementation registered for the dispatch argument's type. Defining the protocol loads the
+ * generated class instead of generating one at runtime.
+ *
+ * An interface naming a {@link Protocol#facade() facade} also gets a class with static methods forwarding to its
+ * dispatcher.
+ *
+ * The processor also lists the generated dispatchers in a GraalVM native image reflection configuration, since they are
+ * loaded by name and instantiated reflectively.
+ */
+@SupportedAnnotationTypes("computersarehard.protocols.annotation.Protocol")
+public class ProtocolProcessor extends AbstractProcessor {
+    static final String NATIVE_IMAGE_CONFIG = "META-INF/native-image/computersarehard.protocols/generated/"
+        + "reflect-config.json";
+
+    // Not loaded from the classes: the compiler does not need the library's dependencies.
+    private static final String DISPATCHER = "computersarehard.protocols.Protocols.Dispatcher";
+    private static final String PROTOCOL = "computersarehard.protocols.Protocol";
+    private static final String PROTOCOLS = "computersarehard.protocols.Protocols";
+
+    private final Set<String> dispatchers = new LinkedHashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion () {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process (Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (Element element : round.getElementsAnnotatedWith(Protocol.class)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                error("Protocol class must be an interface.", element);
+                continue;
+            }
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                error("Protocol interface must not be private.", element);
+                continue;
+            }
+
+            TypeElement api = (TypeElement) element;
+            List<ExecutableElement> methods = getProtocolMethods(api);
+            if (!validateProtocol(methods, api)) {
+                continue;
+            }
+            String facade = api.getAnnotation(Protocol.class).facade();
+            if (!facade.isEmpty() && (!SourceVersion.isIdentifier(facade) || SourceVersion.isKeyword(facade))) {
+                error("Protocol facade " + facade + " is not a valid class name.", api);
+                continue;
+            }
+            try {
+                dispatchers.add(writeDispatcher(api, methods));
+                if (!facade.isEmpty()) {
+                    writeFacade(api, methods, facade);
+                }
+            } catch (IOException e) {
+                error("Could not write the classes of " + api.getQualifiedName() + ": " + e.getMessage(), api);
+            }
+        }
+
+        if (round.processingOver() && !dispatchers.isEmpty()) {
+            try {
+                writeNativeImageConfig();
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Could not write " + NATIVE_IMAGE_CONFIG + ": " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the methods the dispatcher implements: every instance method of the interface, including inherited
+     * ones. Methods with the same erased signature are implemented once.
+     */
+    private List<ExecutableElement> getProtocolMethods (TypeElement api) {
+        List<ExecutableElement> methods = new ArrayList<>();
+        Set<String> signatures = new HashSet<>();
+        for (ExecutableElement m : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(api))) {
+            // Static methods are not dispatched and the members of Object are not part of the protocol
+            if (m.getModifiers().contains(Modifier.STATIC) || m.getModifiers().contains(Modifier.PRIVATE)
+                || m.getEnclosingElement().getKind() != ElementKind.INTERFACE) {
+                continue;
+            }
+            StringBuilder signature = new StringBuilder(m.getSimpleName()).append('(');
+            for (TypeMirror type : typeOf(m, api).getParameterTypes()) {
+                signature.append(erasure(type)).append(',');
+            }
+            if (signatures.add(signature.toString())) {
+                methods.add(m);
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Reports the errors {@link Protocols#define(Class)} would throw for the interface at runtime.
+     */
+    private boolean validateProtocol (List<ExecutableElement> methods, TypeElement api) {
+        boolean valid = true;
+        for (ExecutableElement m : methods) {
+            // Errors are reported on the interface if the method is inherited
+            Element position = m.getEnclosingElement().equals(api) ? m : api;
+            if (m.getParameters().isEmpty()) {
+                error("Protocol method " + m.getSimpleName() + " does not take any parameters.", position);
+                valid = false;
+            } else if (erasure(typeOf(m, api).getParameterTypes().get(0)).getKind() != TypeKind.DECLARED) {
+                error("Protocol method " + m.getSimpleName() + " does not take reference type as first argument.",
+                    position);
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Writes the source of the interface's dispatcher.
+     *
+     * @return the binary name of the dispatcher.
+     */
+    private String writeDispatcher (TypeElement api, List<ExecutableElement> methods) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(api).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(api) + "$$Protocol";
+        String simpleName = packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1);
+        String apiName = api.getQualifiedName().toString();
+
+        StringBuilder source = new StringBuilder()
+            .append("// Generated by ").append(ProtocolProcessor.class.getName()).append(" from ").append(apiName)
+            .append(". Do not edit.\n");
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n");
+        }
+        source.append('\n')
+            .append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n")
+            .append("public final class ").append(simpleName)
+            .append(" extends ").append(DISPATCHER)
+            .append(" implements ").append(apiName).append(" {\n")
+            .append("    public ").append(simpleName).append(" (Class<?> api) {\n")
+            .append("        super(api);\n")
+            .append("    }\n");
+
+        for (ExecutableElement m : methods) {
+            source.append('\n')
+                .append("    @Override\n");
+            // The body looks up the implementation based on the type of the first argument and then delegates the
+            // method call to that implementation.
+            String arguments = appendMethod(source, "public", m, typeOf(m, api));
+            source.append("((").append(apiName).append(") protocols$$getImplementation(arg0)).")
+                .append(m.getSimpleName()).append('(').append(arguments).append(");\n")
+                .append("    }\n");
+        }
+        source.append("}\n");
+
+        writeSource(packageName, simpleName, source, api);
+        return binaryName;
+    }
+
+    /**
+     * Writes the source of a facade class forwarding static methods to the protocol's dispatcher.
+     */
+    private void writeFacade (TypeElement api, List<ExecutableElement> methods, String simpleName)
+        throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(api).getQualifiedName().toString();
+        String apiName = api.getQualifiedName().toString();
+
+        StringBuilder source = new StringBuilder()
+            .append("// Generated by ").append(ProtocolProcessor.class.getName()).append(" from ").append(apiName)
+            .append(". Do not edit.\n");
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n");
+        }
+        source.append('\n')
+            .append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n")
+            .append(isPublic(api) ? "public " : "").append("final class ").append(simpleName).append(" {\n")
+            .append("    public static final ").append(PROTOCOL).append('<').append(apiName).append("> PROTOCOL = ")
+            .append(PROTOCOLS).append(".define(").append(apiName).append(".class);\n")
+            .append('\n')
+            .append("    private static final ").append(apiName).append(" DISPATCHER = PROTOCOL.getDispatcher();\n")
+            .append('\n')
+            .append("    private ").append(simpleName).append(" () {\n")
+            .append("    }\n");
+
+        for (ExecutableElement m : methods) {
+            source.append('\n');
+            String arguments = appendMethod(source, "public static", m, typeOf(m, api));
+            source.append("DISPATCHER.").append(m.getSimpleName()).append('(').append(arguments).append(");\n")
+                .append("    }\n");
+        }
+        source.append("}\n");
+
+        writeSource(packageName, simpleName, source, api);
+    }
+
+    /**
+     * Appends the method's declaration with erased types, up to the start of the statement in its body.
+     *
+     * @return the method's arguments, separated by commas.
+     */
+    private String appendMethod (StringBuilder source, String modifiers, ExecutableElement m, ExecutableType type) {
+        source.append("    ").append(modifiers).append(' ').append(erasure(type.getReturnType())).append(' ')
+            .append(m.getSimpleName()).append(" (");
+        StringBuilder arguments = new StringBuilder();
+        for (int i = 0; i < type.getParameterTypes().size(); i++) {
+            String separator = i > 0 ? ", " : "";
+            source.append(separator).append(erasure(type.getParameterTypes().get(i))).append(" arg").append(i);
+            arguments.append(separator).append("arg").append(i);
+        }
+        source.append(')');
+        for (int i = 0; i < type.getThrownTypes().size(); i++) {
+            source.append(i > 0 ? ", " : " throws ").append(erasure(type.getThrownTypes().get(i)));
+        }
+        source.append(" {\n")
+            .append("        ").append(type.getReturnType().getKind() == TypeKind.VOID ? "" : "return ");
+        return arguments.toString();
+    }
+
+    private void writeSource (String packageName, String simpleName, StringBuilder source, TypeElement api)
+        throws IOException {
+        try (Writer writer = processingEnv.getFiler().createSourceFile(
+            packageName.isEmpty() ? simpleName : packageName + "." + simpleName, api).openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    private void writeNativeImageConfig () throws IOException {
+        StringBuilder config = new StringBuilder("[\n");
+        int i = 0;
+        for (String dispatcher : dispatchers) {
+            config.append(i++ > 0 ? ",\n" : "")
+                .append("  {\"name\": \"").append(dispatcher).append("\", ")
+                .append("\"methods\": [{\"name\": \"<init>\", \"parameterTypes\": [\"java.lang.Class\"]}]}");
+        }
+        config.append("\n]\n");
+
+        FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+            NATIVE_IMAGE_CONFIG);
+        try (Writer writer = file.openWriter()) {
+            writer.write(config.toString());
+        }
+    }
+
+    /**
+     * Returns the method's type as implemented by the dispatcher. Generic interfaces are implemented as raw types,
+     * where every inherited method is erased. Other interfaces implement inherited methods with the type arguments
+     * of their superinterfaces.
+     */
+    private ExecutableType typeOf (ExecutableElement m, TypeElement api) {
+        if (!api.getTypeParameters().isEmpty()) {
+            return (ExecutableType) m.asType();
+        }
+        return (ExecutableType) processingEnv.getTypeUtils().asMemberOf((DeclaredType) api.asType(), m);
+    }
+
+    /**
+     * Returns whether the interface is accessible from other packages.
+     */
+    private static boolean isPublic (TypeElement api) {
+        for (Element e = api; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (!e.getModifiers().contains(Modifier.PUBLIC)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private TypeMirror erasure (TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type);
+    }
+
+    private void error (String message, Element element) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,233 @@
+package computersarehard.protocols.processor;
+
+import computersarehard.protocols.CodeGenerator;
+import computersarehard.protocols.Protocol;
+import computersarehard.protocols.ProtocolOptions;
+import computersarehard.protocols.Protocols;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ProtocolProcessorTest {
+    private static final String DESCRIBE = String.join("\n",
+        "package example;",
+        "",
+        "import computersarehard.protocols.annotation.Protocol;",
+        "",
+        "@Protocol(facade = \"Describing\")",
+        "public interface Describe<T> extends Named {",
+        "    String describe (T value, int depth) throws java.io.IOException;",
+        "",
+        "    default void check (T value) {",
+        "    }",
+        "",
+        "    static String name () {",
+        "        return \"describe\";",
+        "    }",
+        "}"
+    );
+    private static final String NAMED = String.join("\n",
+        "package example;",
+        "",
+        "public interface Named<T> {",
+        "    String name (T value);",
+        "}"
+    );
+    private static final String STRING_DESCRIBE = String.join("\n",
+        "package example;",
+        "",
+        "public class StringDescribe implements Describe<String> {",
+        "    public String describe (String value, int depth) {",
+        "        return \"string \" + value + \" \" + depth;",
+        "    }",
+        "",
+        "    public String name (Object value) {",
+        "        return \"string\";",
+        "    }",
+        "}"
+    );
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDefineLoadsGeneratedDispatcher () throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile(
+            source("example.Describe", DESCRIBE),
+            source("example.Named", NAMED),
+            source("example.StringDescribe", STRING_DESCRIBE)
+        );
+        assertEquals(Collections.emptyList(), errors);
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {folder.getRoot().toURI().toURL()},
+            getClass().getClassLoader())) {
+            Class<?> api = loader.loadClass("example.Describe");
+            Class<?> dispatcherClass = loader.loadClass("example.Describe$$Protocol");
+
+            for (ProtocolOptions options : Arrays.asList(
+                ProtocolOptions.defaults(),
+                ProtocolOptions.defaults().withCodeGenerator(CodeGenerator.BYTECODE)
+            )) {
+                @SuppressWarnings("unchecked")
+                Protocol<Object> protocol = Protocols.define((Class<Object>) api, options);
+                assertSame(dispatcherClass, protocol.getDispatcher().getClass());
+
+                protocol.extend(String.class, loader.loadClass("example.StringDescribe").getConstructor().newInstance());
+                Method describe = api.getMethod("describe", Object.class, int.class);
+                assertEquals("string a 1", describe.invoke(protocol.getDispatcher(), "a", 1));
+                Method name = api.getMethod("name", Object.class);
+                assertEquals("inherited methods are dispatched", "string", name.invoke(protocol.getDispatcher(), "a"));
+            }
+        }
+
+        String config = new String(
+            Files.readAllBytes(new File(folder.getRoot(), ProtocolProcessor.NATIVE_IMAGE_CONFIG).toPath()),
+            StandardCharsets.UTF_8
+        );
+        assertTrue(config, config.contains("\"name\": \"example.Describe$$Protocol\""));
+    }
+
+    @Test
+    public void testFacade () throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile(
+            source("example.Describe", DESCRIBE),
+            source("example.Named", NAMED),
+            source("example.StringDescribe", STRING_DESCRIBE),
+            source("example.Caller", String.join("\n",
+                "package example;",
+                "",
+                "public class Caller {",
+                "    static {",
+                "        Describing.PROTOCOL.extend(String.class, new StringDescribe());",
+                "    }",
+                "",
+                "    public static String call () throws java.io.IOException {",
+                "        return Describing.describe(\"a\", 1) + \" \" + Describing.name(\"b\");",
+                "    }",
+                "}"
+            ))
+        );
+        assertEquals(Collections.emptyList(), errors);
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {folder.getRoot().toURI().toURL()},
+            getClass().getClassLoader())) {
+            assertEquals("string a 1 string", loader.loadClass("example.Caller").getMethod("call").invoke(null));
+            assertSame(
+                "the facade uses the generated dispatcher",
+                loader.loadClass("example.Describe$$Protocol"),
+                ((Protocol<?>) loader.loadClass("example.Describing").getField("PROTOCOL").get(null))
+                    .getDispatcher().getClass()
+            );
+        }
+    }
+
+    @Test
+    public void testNestedInterface () throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile(source("example.Outer", String.join("\n",
+            "package example;",
+            "",
+            "public class Outer {",
+            "    @computersarehard.protocols.annotation.Protocol",
+            "    interface Inner {",
+            "        void run (Object value, long[] values);",
+            "    }",
+            "}"
+        )));
+        assertEquals(Collections.emptyList(), errors);
+        assertTrue(new File(folder.getRoot(), "example/Outer$Inner$$Protocol.class").isFile());
+    }
+
+    @Test
+    public void testInvalidProtocols () throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile(source("example.Invalid", String.join("\n",
+            "package example;",
+            "",
+            "import computersarehard.protocols.annotation.Protocol;",
+            "",
+            "public class Invalid {",
+            "    @Protocol",
+            "    public static class NotAnInterface {",
+            "    }",
+            "",
+            "    @Protocol",
+            "    public interface NoArguments {",
+            "        void run ();",
+            "    }",
+            "",
+            "    @Protocol",
+            "    public interface Primitive {",
+            "        void run (int value);",
+            "    }",
+            "",
+            "    @Protocol(facade = \"class\")",
+            "    public interface Facade {",
+            "        void run (Object value);",
+            "    }",
+            "}"
+        )));
+
+        List<String> messages = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> error : errors) {
+            messages.add(error.getMessage(null));
+        }
+        assertEquals(Arrays.asList(
+            "Protocol class must be an interface.",
+            "Protocol method run does not take any parameters.",
+            "Protocol method run does not take reference type as first argument.",
+            "Protocol facade class is not a valid class name."
+        ), messages);
+    }
+
+    private List<Diagnostic<? extends JavaFileObject>> compile (JavaFileObject... sources) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null)) {
+            files.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(folder.getRoot()));
+            JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+                Arrays.asList("-classpath", System.getProperty("java.class.path")), null, Arrays.asList(sources));
+            task.setProcessors(Collections.singletonList(new ProtocolProcessor()));
+            task.call();
+        }
+
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic);
+            }
+        }
+        return errors;
+    }
+
+    private static JavaFileObject source (String name, String code) {
+        URI uri = URI.create("string:///" + name.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+        return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent (boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+}
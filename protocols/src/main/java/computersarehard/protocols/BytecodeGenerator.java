@@ -0,0 +1,327 @@
+package computersarehard.protocols;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+import static computersarehard.protocols.ClassWriter.*;
+
+/**
+ * Generates the classes of {@link CodeGenerator#BYTECODE} dispatchers.
+ *
+ * The generated code matches what the Javassist backend compiles from source, but is written as bytecode without
+ * parsing or compiling anything. Classes are defined through a {@link MethodHandles.Lookup} in the protocol
+ * interface's package: as hidden classes where the JDK supports them (Java 15 and later), as regular classes through
+ * the lookup on Java 9 to 14 and through the interface's class loader on Java 8. The JDK's capabilities are detected
+ * once, reflectively, so the library is a single Java 8 jar.
+ */
+final class BytecodeGenerator {
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String CLASS = "Ljava/lang/Class;";
+    private static final String INLINE_CACHE_ENTRY = descriptor(Protocols.InlineCacheEntry.class);
+
+    private static final Method PRIVATE_LOOKUP_IN;
+    private static final Method DEFINE_CLASS;
+    private static final Method DEFINE_HIDDEN_CLASS;
+    private static final Object HIDDEN_CLASS_OPTIONS;
+
+    static {
+        Method privateLookupIn = null;
+        Method defineClass = null;
+        Method defineHiddenClass = null;
+        Object options = null;
+        try {
+            // Java 9
+            privateLookupIn = MethodHandles.class.getMethod("privateLookupIn", Class.class,
+                MethodHandles.Lookup.class);
+            defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            // Java 15
+            Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            // Without options hidden classes are not nestmates and can be unloaded once they are unreachable.
+            options = Array.newInstance(classOption, 0);
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+                boolean.class, options.getClass());
+        } catch (ReflectiveOperationException e) {
+            // Older JDK, use what was found so far.
+        }
+        PRIVATE_LOOKUP_IN = privateLookupIn;
+        DEFINE_CLASS = defineClass;
+        DEFINE_HIDDEN_CLASS = defineHiddenClass;
+        HIDDEN_CLASS_OPTIONS = options;
+    }
+
+    private BytecodeGenerator () {
+    }
+
+    /**
+     * Generates the class of a {@link DispatchEngine#LOOKUP} dispatcher.
+     */
+    static Class<?> makeDispatcherClass (Class<?> api, String className, int inlineCacheSize, boolean specialize,
+        boolean direct) throws Exception {
+        return define(api, className, writeDispatcherClass(api, className, inlineCacheSize, specialize, direct));
+    }
+
+    static byte[] writeDispatcherClass (Class<?> api, String className, int inlineCacheSize, boolean specialize,
+        boolean direct) {
+        ClassWriter writer = new ClassWriter(ACC_PUBLIC | ACC_SUPER, className, Protocols.Dispatcher.class, api);
+        List<Method> methods = getProtocolMethods(api);
+        for (int i = 0; i < methods.size(); i++) {
+            Method m = methods.get(i);
+            ClassWriter.Code code = writer.addMethod(ACC_PUBLIC, m.getName(), methodDescriptor(m));
+            if (direct) {
+                // Receivers that implement the protocol's interface are their own implementation.
+                ClassWriter.Label lookup = new ClassWriter.Label();
+                code.loadParameter(0).typeInsn(INSTANCEOF, api).jump(IFEQ, lookup);
+                invokeProtocolMethod(code.loadParameter(0), api, m);
+                code.mark(lookup);
+            }
+            if (specialize) {
+                // Once profiling has produced a specialized dispatcher every call is delegated to it.
+                ClassWriter.Label table = new ClassWriter.Label();
+                int specialization = code.newLocal(Object.class);
+                code.load(0, OBJECT).invoke(INVOKEVIRTUAL, "protocols$$getSpecialization", "()" + OBJECT)
+                    .store(specialization, OBJECT)
+                    .load(specialization, OBJECT).jump(IFNULL, table);
+                invokeProtocolMethod(code.load(specialization, OBJECT), api, m);
+                code.mark(table);
+            }
+            if (inlineCacheSize > 0) {
+                addInlineCache(writer, code, "protocols$$ic" + i + "$", inlineCacheSize, api, m);
+            } else {
+                code.load(0, OBJECT).loadParameter(0)
+                    .invoke(INVOKEVIRTUAL, "protocols$$getImplementation", "(" + OBJECT + ")" + OBJECT);
+                invokeProtocolMethod(code, api, m);
+            }
+        }
+
+        if (inlineCacheSize > 0) {
+            // Clear every method's cache when the protocol is extended.
+            ClassWriter.Code reset = writer.addMethod(ACC_PROTECTED, "protocols$$resetInlineCaches", "()V");
+            for (int i = 0; i < methods.size(); i++) {
+                for (int slot = 0; slot < inlineCacheSize; slot++) {
+                    reset.load(0, OBJECT).insn(ACONST_NULL, 1)
+                        .field(PUTFIELD, "protocols$$ic" + i + "$" + slot, INLINE_CACHE_ENTRY);
+                }
+            }
+            reset.returnValue();
+        }
+
+        addConstructor(writer, Protocols.Dispatcher.class, Class.class);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Generates the class of a {@link DispatchEngine#INVOKEDYNAMIC} dispatcher. Every protocol method passes its
+     * arguments to a call site linked by the dispatcher's bootstrap method.
+     */
+    static Class<?> makeCallSiteDispatcherClass (Class<?> api, String className) throws Exception {
+        ClassWriter writer = new ClassWriter(ACC_PUBLIC | ACC_SUPER, className, Protocols.CallSiteDispatcher.class,
+            api);
+        // The bootstrap method finds the dispatcher through this field.
+        writer.addField(ACC_PUBLIC | ACC_STATIC, "protocols$$self", OBJECT);
+        int bootstrap = writer.addBootstrapMethod(Protocols.CallSiteDispatcher.class, "protocols$$bootstrap",
+            descriptor(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class));
+
+        for (Method m : getProtocolMethods(api)) {
+            String descriptor = methodDescriptor(m);
+            writer.addMethod(ACC_PUBLIC, m.getName(), descriptor)
+                .loadParameters()
+                .invokeDynamic(bootstrap, m.getName(), descriptor)
+                .returnValue();
+        }
+
+        // Publishes the instance to the bootstrap method.
+        writer.addMethod(ACC_PUBLIC, "<init>", "(" + CLASS + ")V")
+            .load(0, OBJECT).load(1, OBJECT)
+            .invoke(INVOKESPECIAL, internalName(Protocols.CallSiteDispatcher.class), "<init>", "(" + CLASS + ")V")
+            .load(0, OBJECT).field(PUTSTATIC, "protocols$$self", OBJECT)
+            .returnValue();
+        return define(api, className, writer.toByteArray());
+    }
+
+    /**
+     * Generates the class of a specialized dispatcher that checks for the given receiver classes and invokes the
+     * implementation stored in a field of the given type for each.
+     */
+    static Class<?> makeSpecializationClass (Class<?> api, String className, List<Class<?>> types,
+        Class<?>[] fieldTypes) throws Exception {
+        ClassWriter writer = new ClassWriter(ACC_PUBLIC | ACC_SUPER, className, Protocols.Specialization.class, api);
+
+        String constructorDescriptor = descriptor(void.class, Protocols.Dispatcher.class, Object[].class);
+        ClassWriter.Code constructor = writer.addMethod(ACC_PUBLIC, "<init>", constructorDescriptor)
+            .load(0, OBJECT).load(1, OBJECT).load(2, OBJECT)
+            .invoke(INVOKESPECIAL, internalName(Protocols.Specialization.class), "<init>", constructorDescriptor);
+        for (int i = 0; i < types.size(); i++) {
+            writer.addField(ACC_PRIVATE | ACC_FINAL, "protocols$$impl" + i, descriptor(fieldTypes[i]));
+            constructor.load(0, OBJECT).load(2, OBJECT).push(i).insn(AALOAD, -1)
+                .typeInsn(CHECKCAST, fieldTypes[i])
+                .field(PUTFIELD, "protocols$$impl" + i, descriptor(fieldTypes[i]));
+        }
+        constructor.returnValue();
+
+        for (Method m : getProtocolMethods(api)) {
+            String descriptor = methodDescriptor(m);
+            ClassWriter.Code code = writer.addMethod(ACC_PUBLIC, m.getName(), descriptor);
+            int type = code.newLocal(Class.class);
+            code.load(0, OBJECT).loadParameter(0)
+                .invoke(INVOKEVIRTUAL, "protocols$$getDispatchType", "(" + OBJECT + ")" + CLASS)
+                .store(type, CLASS);
+            for (int i = 0; i < types.size(); i++) {
+                ClassWriter.Label next = new ClassWriter.Label();
+                code.load(type, CLASS).pushClass(types.get(i)).jump(IF_ACMPNE, next)
+                    .load(0, OBJECT).field(GETFIELD, "protocols$$impl" + i, descriptor(fieldTypes[i]))
+                    .loadParameters()
+                    .invoke(fieldTypes[i].isInterface() ? INVOKEINTERFACE : INVOKEVIRTUAL,
+                        internalName(fieldTypes[i]), m.getName(), descriptor)
+                    .returnValue()
+                    .mark(next);
+            }
+            code.load(0, OBJECT).loadParameter(0)
+                .invoke(INVOKEVIRTUAL, "protocols$$getImplementation", "(" + OBJECT + ")" + OBJECT);
+            invokeProtocolMethod(code, api, m);
+        }
+        return define(api, className, writer.toByteArray());
+    }
+
+    /**
+     * Generates the class of handles bound to a single type's implementation.
+     */
+    static Class<?> makeBindingClass (Class<?> api, String className) throws Exception {
+        ClassWriter writer = new ClassWriter(ACC_PUBLIC | ACC_SUPER, className, Protocols.Binding.class, api);
+        for (Method m : getProtocolMethods(api)) {
+            ClassWriter.Code code = writer.addMethod(ACC_PUBLIC, m.getName(), methodDescriptor(m))
+                .load(0, OBJECT).invoke(INVOKEVIRTUAL, "protocols$$getImplementation", "()" + OBJECT);
+            invokeProtocolMethod(code, api, m);
+        }
+        addConstructor(writer, Protocols.Binding.class, Protocols.Dispatcher.class,
+            Protocols.InlineCacheEntry.class);
+        return define(api, className, writer.toByteArray());
+    }
+
+    /**
+     * Adds the inline cache of a protocol method, see {@code Protocols.makeInlineCacheBody}.
+     */
+    private static void addInlineCache (ClassWriter writer, ClassWriter.Code code, String slotPrefix, int slots,
+        Class<?> api, Method m) {
+        int type = code.newLocal(Class.class);
+        int entry = code.newLocal(Protocols.InlineCacheEntry.class);
+        code.load(0, OBJECT).loadParameter(0)
+            .invoke(INVOKEVIRTUAL, "protocols$$getDispatchType", "(" + OBJECT + ")" + CLASS)
+            .store(type, CLASS)
+            .insn(ACONST_NULL, 1).store(entry, INLINE_CACHE_ENTRY);
+
+        String entryClass = internalName(Protocols.InlineCacheEntry.class);
+        for (int slot = 0; slot < slots; slot++) {
+            String field = slotPrefix + slot;
+            writer.addField(ACC_PRIVATE | ACC_VOLATILE, field, INLINE_CACHE_ENTRY);
+            ClassWriter.Label miss = new ClassWriter.Label();
+            code.load(0, OBJECT).field(GETFIELD, field, INLINE_CACHE_ENTRY).store(entry, INLINE_CACHE_ENTRY)
+                .load(entry, INLINE_CACHE_ENTRY).jump(IFNULL, miss)
+                .load(entry, INLINE_CACHE_ENTRY).field(GETFIELD, entryClass, "type", CLASS)
+                .load(type, CLASS).jump(IF_ACMPNE, miss)
+                .load(entry, INLINE_CACHE_ENTRY).field(GETFIELD, entryClass, "implementation", OBJECT);
+            invokeProtocolMethod(code, api, m);
+            code.mark(miss);
+        }
+
+        // Fill the first free slot. An entry resolved before the protocol was extended is cleared again because the
+        // reset may have run before the slot was written.
+        code.load(0, OBJECT).loadParameter(0)
+            .invoke(INVOKEVIRTUAL, "protocols$$newInlineCacheEntry", "(" + OBJECT + ")" + INLINE_CACHE_ENTRY)
+            .store(entry, INLINE_CACHE_ENTRY);
+        ClassWriter.Label filled = new ClassWriter.Label();
+        for (int slot = 0; slot < slots; slot++) {
+            String field = slotPrefix + slot;
+            ClassWriter.Label taken = new ClassWriter.Label();
+            code.load(0, OBJECT).field(GETFIELD, field, INLINE_CACHE_ENTRY).jump(IFNONNULL, taken)
+                .load(0, OBJECT).load(entry, INLINE_CACHE_ENTRY).field(PUTFIELD, field, INLINE_CACHE_ENTRY)
+                .load(0, OBJECT).load(entry, INLINE_CACHE_ENTRY)
+                .invoke(INVOKEVIRTUAL, "protocols$$isCurrent", "(" + INLINE_CACHE_ENTRY + ")Z")
+                .jump(IFNE, filled)
+                .load(0, OBJECT).insn(ACONST_NULL, 1).field(PUTFIELD, field, INLINE_CACHE_ENTRY)
+                .jump(GOTO, filled)
+                .mark(taken);
+        }
+        code.mark(filled)
+            .load(entry, INLINE_CACHE_ENTRY).field(GETFIELD, entryClass, "implementation", OBJECT);
+        invokeProtocolMethod(code, api, m);
+    }
+
+    /**
+     * Invokes the protocol method on the implementation on top of the stack with the method's arguments and returns
+     * the result.
+     */
+    private static void invokeProtocolMethod (ClassWriter.Code code, Class<?> api, Method m) {
+        code.typeInsn(CHECKCAST, api)
+            .loadParameters()
+            .invoke(INVOKEINTERFACE, internalName(api), m.getName(), methodDescriptor(m))
+            .returnValue();
+    }
+
+    /**
+     * Adds a public constructor that passes its arguments to the superclass constructor.
+     */
+    private static void addConstructor (ClassWriter writer, Class<?> superclass, Class<?>... parameterTypes) {
+        String descriptor = descriptor(void.class, parameterTypes);
+        ClassWriter.Code code = writer.addMethod(ACC_PUBLIC, "<init>", descriptor).load(0, OBJECT).loadParameters();
+        code.invoke(INVOKESPECIAL, internalName(superclass), "<init>", descriptor).returnValue();
+    }
+
+    private static List<Method> getProtocolMethods (Class<?> api) {
+        List<Method> methods = new ArrayList<>();
+        for (Method m : api.getDeclaredMethods()) {
+            // Static methods are not dispatched (see validateProtocol)
+            if (!Modifier.isStatic(m.getModifiers())) {
+                methods.add(m);
+            }
+        }
+        return methods;
+    }
+
+    private static String methodDescriptor (Method m) {
+        return descriptor(m.getReturnType(), m.getParameterTypes());
+    }
+
+    /**
+     * Defines a generated class in the protocol interface's package.
+     */
+    static Class<?> define (Class<?> api, String className, byte[] bytes) throws Exception {
+        try {
+            if (PRIVATE_LOOKUP_IN == null) {
+                return defineInClassLoader(api, className, bytes);
+            }
+            Object lookup = PRIVATE_LOOKUP_IN.invoke(null, api, MethodHandles.lookup());
+            if (DEFINE_HIDDEN_CLASS != null) {
+                return ((MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(lookup, bytes, true, HIDDEN_CLASS_OPTIONS))
+                    .lookupClass();
+            }
+            return (Class<?>) DEFINE_CLASS.invoke(lookup, bytes);
+        } catch (InvocationTargetException e) {
+            if (!(e.getCause() instanceof LinkageError)) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            // The class loader already has a class of the same name.
+            try {
+                return Class.forName(className, true, api.getClassLoader());
+            } catch (ClassNotFoundException notFound) {
+                throw (LinkageError) e.getCause();
+            }
+        }
+    }
+
+    private static Class<?> defineInClassLoader (Class<?> api, String className, byte[] bytes) throws Exception {
+        // Java 8 has no way to define a class in another class's package but the class loader.
+        Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class,
+            int.class, int.class, ProtectionDomain.class);
+        defineClass.setAccessible(true);
+        return (Class<?>) defineClass.invoke(api.getClassLoader(), className, bytes, 0, bytes.length,
+            api.getProtectionDomain());
+    }
+}
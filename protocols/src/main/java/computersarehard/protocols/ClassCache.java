@@ -0,0 +1,238 @@
+package computersarehard.protocols;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+/**
+ * A directory of generated dispatcher classes shared by JVM runs, see {@link ProtocolOptions#withClassCache}.
+ *
+ * Each entry is a file named after the generated class that holds a key, the class's bytes and their checksum. The key
+ * is a digest of everything the bytes are generated from: the protocol interface's class file, the generated class's
+ * name (which includes the options), the code generator and the library's own classes. Entries whose key or checksum
+ * do not match are ignored and replaced, so entries written by other versions of the interface or the library, and
+ * truncated or corrupt files, are never defined. Entries are written to a temporary file and moved into place
+ * atomically, so concurrent JVMs only ever read complete entries. Any I/O failure falls back to generating the class.
+ */
+final class ClassCache {
+    private static final int MAGIC = 0x50524f54;
+    private static final int FORMAT = 1;
+    // Classes whose code determines the generated bytes.
+    private static final Class<?>[] LIBRARY_CLASSES = {
+        Protocols.class, Protocols.Dispatcher.class, BytecodeGenerator.class, ClassWriter.class
+    };
+
+    private final Path directory;
+    private final CodeGenerator generator;
+
+    ClassCache (Path directory, CodeGenerator generator) {
+        this.directory = directory;
+        this.generator = generator;
+    }
+
+    /**
+     * Defines the class from its cached bytes, or from the generated bytes which are then added to the cache.
+     */
+    Class<?> define (Class<?> api, String className, Callable<byte[]> generate) throws Exception {
+        byte[] key = key(api, className);
+        Path file = key != null ? file(className, key) : null;
+        if (file != null) {
+            byte[] cached = read(file, key);
+            if (cached != null) {
+                try {
+                    return link(BytecodeGenerator.define(api, className, cached));
+                } catch (LinkageError e) {
+                    // Written by a broken generator or refers to classes that changed since. Replaced below, deleted
+                    // first in case generating the class fails as well.
+                    delete(file);
+                }
+            }
+        }
+
+        byte[] bytes = generate.call();
+        Class<?> generatedClass = BytecodeGenerator.define(api, className, bytes);
+        if (file != null) {
+            write(file, key, bytes);
+        }
+        return generatedClass;
+    }
+
+    /**
+     * Returns the digest identifying the class's bytes, or null if the interface's class file cannot be read.
+     */
+    byte[] key (Class<?> api, String className) {
+        byte[] apiBytes = readClassFile(api);
+        if (apiBytes == null) {
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        digest.update(LibraryDigest.VALUE);
+        digest.update((generator.name() + "\n" + className + "\n").getBytes(StandardCharsets.UTF_8));
+        digest.update(apiBytes);
+        return digest.digest();
+    }
+
+    /**
+     * Returns the entry of the class with the given key.
+     */
+    Path file (String className, byte[] key) {
+        return directory.resolve(className + "-" + toHex(key, 8) + ".bin");
+    }
+
+    /**
+     * Links and initializes a class defined from cached bytes, so bytes that do not verify against the classes they
+     * refer to fail while the entry can still be replaced rather than on first use. Hidden classes are initialized when
+     * they are defined.
+     */
+    private static Class<?> link (Class<?> type) {
+        if (type.getName().indexOf('/') >= 0) {
+            return type;
+        }
+        try {
+            return Class.forName(type.getName(), true, type.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new NoClassDefFoundError(type.getName());
+        }
+    }
+
+    private static byte[] read (Path file, byte[] key) {
+        byte[] entry;
+        try {
+            entry = Files.readAllBytes(file);
+        } catch (IOException e) {
+            // Not cached yet
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                return null;
+            }
+            byte[] entryKey = new byte[key.length];
+            in.readFully(entryKey);
+            if (!Arrays.equals(entryKey, key)) {
+                return null;
+            }
+            int length = in.readInt();
+            long checksum = in.readLong();
+            if (length != in.available()) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return checksum(bytes) == checksum ? bytes : null;
+        } catch (IOException e) {
+            // Truncated
+            return null;
+        }
+    }
+
+    void write (Path file, byte[] key, byte[] bytes) {
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.write(key);
+                out.writeInt(bytes.length);
+                out.writeLong(checksum(bytes));
+                out.write(bytes);
+            }
+            // Other JVMs see either no entry, the previous one or this one, never a partial file.
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+        } catch (IOException e) {
+            // The class is generated again next time.
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    // Leaves a temporary file behind, entries are unaffected.
+                }
+            }
+        }
+    }
+
+    private static void delete (Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Replaced once the class has been generated.
+        }
+    }
+
+    private static long checksum (byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    private static byte[] readClassFile (Class<?> type) {
+        ClassLoader loader = type.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        try (InputStream in = loader.getResourceAsStream(type.getName().replace('.', '/') + ".class")) {
+            if (in == null) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static MessageDigest newDigest () {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JDK implements SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex (byte[] bytes, int length) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The digest of the library's class files, computed on first use.
+     */
+    private static final class LibraryDigest {
+        static final byte[] VALUE;
+
+        static {
+            MessageDigest digest = newDigest();
+            for (Class<?> type : LIBRARY_CLASSES) {
+                byte[] bytes = readClassFile(type);
+                digest.update(bytes != null ? bytes : type.getName().getBytes(StandardCharsets.UTF_8));
+            }
+            VALUE = digest.digest();
+        }
+    }
+}
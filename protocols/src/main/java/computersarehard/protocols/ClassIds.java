@@ -0,0 +1,93 @@
+package computersarehard.protocols;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small integer IDs for classes, shared by all protocols.
+ *
+ * Each class gets an ID the first time it is looked up, counting up from 0, so tables indexed by ID stay dense when
+ * protocols dispatch on the same types. Once a class has been unloaded its ID is handed to a later class, the lowest
+ * free ID first, so the IDs in use grow with the number of loaded classes rather than with all classes ever looked
+ * up, e.g. by applications that are redeployed in new class loaders. Tables must only store the IDs of classes that
+ * live at least as long as the table: those can only be unloaded once the table is unreachable as well. Hidden
+ * classes, which are typically generated in large numbers and unloaded individually, get {@link #NONE} instead so
+ * they do not spread the IDs of other classes.
+ */
+final class ClassIds {
+    /**
+     * The ID of classes without an ID. Larger than any table, so lookups by this ID always miss.
+     */
+    static final int NONE = Integer.MAX_VALUE;
+
+    private static final AtomicInteger NEXT = new AtomicInteger();
+    // IDs of unloaded classes, handed out again before new ones.
+    private static final ConcurrentSkipListSet<Integer> FREE = new ConcurrentSkipListSet<>();
+    // Classes by ID, for the few callers that need to map back. The weak references do not keep the classes alive.
+    private static final ConcurrentHashMap<Integer, Id> TYPES = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Class<?>> UNLOADED = new ReferenceQueue<>();
+    private static final ClassValue<Integer> IDS = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue (Class<?> type) {
+            if (type.getName().indexOf('/') >= 0) {
+                return NONE;
+            }
+            expunge();
+            // Racing computations of the same class take an extra ID, which is freed along with the class.
+            Integer free = FREE.pollFirst();
+            int id = free != null ? free : NEXT.getAndIncrement();
+            if (id == NONE) {
+                NEXT.set(NONE);
+                return NONE;
+            }
+            TYPES.put(id, new Id(type, id));
+            return id;
+        }
+    };
+
+    private ClassIds () {
+    }
+
+    /**
+     * Returns the ID of the given class.
+     *
+     * @param type The class.
+     * @return the class's ID, or {@link #NONE}.
+     */
+    static int of (Class<?> type) {
+        return IDS.get(type);
+    }
+
+    /**
+     * Returns the class with the given ID.
+     *
+     * @param id The ID.
+     * @return the class or null if the ID is not assigned or its class has been unloaded.
+     */
+    static Class<?> get (int id) {
+        Id reference = TYPES.get(id);
+        return reference != null ? reference.get() : null;
+    }
+
+    private static void expunge () {
+        for (Reference<?> reference = UNLOADED.poll(); reference != null; reference = UNLOADED.poll()) {
+            int id = ((Id) reference).id;
+            if (TYPES.remove(id, reference)) {
+                FREE.add(id);
+            }
+        }
+    }
+
+    private static final class Id extends WeakReference<Class<?>> {
+        final int id;
+
+        Id (Class<?> type, int id) {
+            super(type, UNLOADED);
+            this.id = id;
+        }
+    }
+}
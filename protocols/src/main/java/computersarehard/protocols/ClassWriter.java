@@ -0,0 +1,584 @@
+package computersarehard.protocols;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for the class files of generated dispatchers.
+ *
+ * Supports what generated dispatchers need and nothing more: fields, methods made of straight-line code with forward
+ * branches, invokedynamic and stack map frames. Every branch target must be reached with an empty operand stack and
+ * its frame lists the method's parameters followed by the locals allocated so far, so a local has to be assigned
+ * before the first branch that follows its allocation. The operand stack depth is tracked as instructions are added.
+ */
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_PROTECTED = 0x0004;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+    static final int ACC_VOLATILE = 0x0040;
+
+    static final int ACONST_NULL = 0x01;
+    static final int AALOAD = 0x32;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int INVOKEDYNAMIC = 0xba;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int IFNULL = 0xc6;
+    static final int IFNONNULL = 0xc7;
+
+    // Java 8, the oldest class file version the library runs on.
+    private static final int VERSION = 52;
+    private static final int REF_INVOKE_STATIC = 6;
+
+    private final Bytes pool = new Bytes();
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolSize = 1;
+
+    private final String name;
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final Bytes fields = new Bytes();
+    private int fieldCount;
+    private final List<Code> methods = new ArrayList<>();
+    private final Bytes bootstrapMethods = new Bytes();
+    private int bootstrapMethodCount;
+
+    /**
+     * Starts a class.
+     *
+     * @param access The class's access flags.
+     * @param name The binary name of the class.
+     * @param superclass The superclass.
+     * @param interfaces The implemented interfaces.
+     */
+    ClassWriter (int access, String name, Class<?> superclass, Class<?>... interfaces) {
+        this.name = internalName(name);
+        this.access = access;
+        this.thisClass = classInfo(this.name);
+        this.superClass = classInfo(internalName(superclass));
+        this.interfaces = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            this.interfaces[i] = classInfo(internalName(interfaces[i]));
+        }
+    }
+
+    /**
+     * Returns the internal name (slash separated) of the class being written.
+     */
+    String getName () {
+        return name;
+    }
+
+    void addField (int access, String name, String descriptor) {
+        fields.u2(access).u2(utf8(name)).u2(utf8(descriptor)).u2(0);
+        fieldCount++;
+    }
+
+    /**
+     * Adds a method. Instructions are added to the returned code until the class is written.
+     */
+    Code addMethod (int access, String name, String descriptor) {
+        Code code = new Code(access, name, descriptor);
+        methods.add(code);
+        return code;
+    }
+
+    /**
+     * Adds a bootstrap method without static arguments.
+     *
+     * @return the index to pass to {@link Code#invokeDynamic(int, String, String)}.
+     */
+    int addBootstrapMethod (Class<?> owner, String name, String descriptor) {
+        int handle = constant("H" + owner.getName() + '.' + name + descriptor, () -> {
+            int method = memberRef(10, internalName(owner), name, descriptor);
+            pool.u1(15).u1(REF_INVOKE_STATIC).u2(method);
+        });
+        bootstrapMethods.u2(handle).u2(0);
+        return bootstrapMethodCount++;
+    }
+
+    byte[] toByteArray () {
+        // Attributes add their names to the constant pool, so the pool is written last.
+        Bytes body = new Bytes();
+        body.u2(access).u2(thisClass).u2(superClass).u2(interfaces.length);
+        for (int index : interfaces) {
+            body.u2(index);
+        }
+        body.u2(fieldCount).bytes(fields);
+        body.u2(methods.size());
+        for (Code method : methods) {
+            method.writeTo(body);
+        }
+        if (bootstrapMethodCount > 0) {
+            body.u2(1).u2(utf8("BootstrapMethods")).u4(2 + bootstrapMethods.length).u2(bootstrapMethodCount)
+                .bytes(bootstrapMethods);
+        } else {
+            body.u2(0);
+        }
+
+        Bytes classFile = new Bytes();
+        classFile.u4(0xCAFEBABE).u2(0).u2(VERSION).u2(poolSize).bytes(pool).bytes(body);
+        return classFile.toByteArray();
+    }
+
+    static String internalName (Class<?> type) {
+        return internalName(type.getName());
+    }
+
+    static String internalName (String name) {
+        return name.replace('.', '/');
+    }
+
+    static String descriptor (Class<?> type) {
+        if (type.isPrimitive()) {
+            return String.valueOf(type == void.class ? 'V'
+                : type == boolean.class ? 'Z'
+                : type == byte.class ? 'B'
+                : type == char.class ? 'C'
+                : type == short.class ? 'S'
+                : type == int.class ? 'I'
+                : type == long.class ? 'J'
+                : type == float.class ? 'F'
+                : 'D');
+        }
+        return type.isArray() ? internalName(type) : 'L' + internalName(type) + ';';
+    }
+
+    static String descriptor (Class<?> returnType, Class<?>... parameterTypes) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (Class<?> type : parameterTypes) {
+            descriptor.append(descriptor(type));
+        }
+        return descriptor.append(')').append(descriptor(returnType)).toString();
+    }
+
+    private int utf8 (String value) {
+        return constant("U" + value, () -> pool.u1(1).utf(value));
+    }
+
+    private int classInfo (String internalName) {
+        return constant("C" + internalName, () -> {
+            int name = utf8(internalName);
+            pool.u1(7).u2(name);
+        });
+    }
+
+    private int nameAndType (String name, String descriptor) {
+        return constant("N" + name + ' ' + descriptor, () -> {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            pool.u1(12).u2(nameIndex).u2(descriptorIndex);
+        });
+    }
+
+    private int memberRef (int tag, String owner, String name, String descriptor) {
+        return constant("M" + tag + owner + '.' + name + descriptor, () -> {
+            int ownerIndex = classInfo(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            pool.u1(tag).u2(ownerIndex).u2(nameAndType);
+        });
+    }
+
+    private int constant (String key, Runnable write) {
+        Integer index = constants.get(key);
+        if (index == null) {
+            // Entries an entry refers to are added first, so reserve the index once they are written.
+            write.run();
+            index = poolSize++;
+            constants.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * The code of a method.
+     */
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final String returnType;
+        private final List<String> parameterTypes;
+        private final Bytes code = new Bytes();
+        private final List<Object[]> frames = new ArrayList<>();
+        // Verification types of the locals in slot order: the receiver, the parameters and the allocated locals.
+        private final List<String> locals = new ArrayList<>();
+        private int maxLocals;
+        private int stack;
+        private int maxStack;
+
+        Code (int access, String name, String descriptor) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.parameterTypes = parseParameters(descriptor);
+            this.returnType = descriptor.substring(descriptor.indexOf(')') + 1);
+            if ((access & ACC_STATIC) == 0) {
+                locals.add('L' + ClassWriter.this.name + ';');
+                maxLocals = 1;
+            }
+            for (String type : parameterTypes) {
+                locals.add(type);
+                maxLocals += size(type);
+            }
+        }
+
+        /**
+         * Returns the slot of the given parameter.
+         */
+        int parameter (int index) {
+            int slot = (access & ACC_STATIC) == 0 ? 1 : 0;
+            for (int i = 0; i < index; i++) {
+                slot += size(parameterTypes.get(i));
+            }
+            return slot;
+        }
+
+        /**
+         * Allocates a local variable of the given type.
+         *
+         * @return the local's slot.
+         */
+        int newLocal (Class<?> type) {
+            String descriptor = descriptor(type);
+            int slot = maxLocals;
+            locals.add(descriptor);
+            maxLocals += size(descriptor);
+            return slot;
+        }
+
+        Code load (int slot, String type) {
+            return varInsn(loadOpcode(type), slot, size(type));
+        }
+
+        Code store (int slot, String type) {
+            return varInsn(loadOpcode(type) + 0x21, slot, -size(type));
+        }
+
+        Code loadParameter (int index) {
+            return load(parameter(index), parameterTypes.get(index));
+        }
+
+        /**
+         * Loads every parameter, in order.
+         */
+        Code loadParameters () {
+            for (int i = 0; i < parameterTypes.size(); i++) {
+                loadParameter(i);
+            }
+            return this;
+        }
+
+        Code returnValue () {
+            if (returnType.equals("V")) {
+                return insn(RETURN, 0);
+            }
+            // ireturn, lreturn, freturn, dreturn and areturn follow the matching loads
+            return insn(loadOpcode(returnType) + 0x97, -size(returnType));
+        }
+
+        Code insn (int opcode, int stackChange) {
+            code.u1(opcode);
+            return adjust(stackChange);
+        }
+
+        Code push (int value) {
+            if (value >= -1 && value <= 5) {
+                code.u1(0x03 + value);
+            } else {
+                code.u1(0x11).u2(value);
+            }
+            return adjust(1);
+        }
+
+        Code pushClass (Class<?> type) {
+            int index = classInfo(internalName(type));
+            if (index < 256) {
+                code.u1(0x12).u1(index);
+            } else {
+                code.u1(0x13).u2(index);
+            }
+            return adjust(1);
+        }
+
+        Code typeInsn (int opcode, Class<?> type) {
+            code.u1(opcode).u2(classInfo(internalName(type)));
+            return adjust(0);
+        }
+
+        /**
+         * Accesses a field of the class being written.
+         */
+        Code field (int opcode, String name, String type) {
+            return field(opcode, ClassWriter.this.name, name, type);
+        }
+
+        Code field (int opcode, String owner, String name, String type) {
+            code.u1(opcode).u2(memberRef(9, owner, name, type));
+            int size = size(type);
+            return adjust(opcode == GETSTATIC ? size
+                : opcode == PUTSTATIC ? -size
+                : opcode == GETFIELD ? size - 1
+                : -size - 1);
+        }
+
+        /**
+         * Invokes a method of the class being written.
+         */
+        Code invoke (int opcode, String name, String descriptor) {
+            return invoke(opcode, ClassWriter.this.name, name, descriptor);
+        }
+
+        Code invoke (int opcode, String owner, String name, String descriptor) {
+            boolean itf = opcode == INVOKEINTERFACE;
+            code.u1(opcode).u2(memberRef(itf ? 11 : 10, owner, name, descriptor));
+            int arguments = argumentSize(descriptor);
+            if (itf) {
+                code.u1(arguments + 1).u1(0);
+            }
+            return adjust(returnSize(descriptor) - arguments - (opcode == INVOKESTATIC ? 0 : 1));
+        }
+
+        Code invokeDynamic (int bootstrapMethod, String name, String descriptor) {
+            int nameAndType = nameAndType(name, descriptor);
+            int index = constant("D" + bootstrapMethod + ' ' + name + descriptor,
+                () -> pool.u1(18).u2(bootstrapMethod).u2(nameAndType));
+            code.u1(INVOKEDYNAMIC).u2(index).u2(0);
+            return adjust(returnSize(descriptor) - argumentSize(descriptor));
+        }
+
+        /**
+         * Adds a forward branch to the given label.
+         */
+        Code jump (int opcode, Label label) {
+            int position = code.length;
+            code.u1(opcode);
+            label.fixups.add(new int[] {position, code.length});
+            code.u2(0);
+            return adjust(opcode == GOTO ? 0 : opcode == IF_ACMPNE ? -2 : -1);
+        }
+
+        /**
+         * Places the label at the next instruction. The operand stack must be empty.
+         */
+        Code mark (Label label) {
+            label.offset = code.length;
+            for (int[] fixup : label.fixups) {
+                code.set2(fixup[1], label.offset - fixup[0]);
+            }
+            Object[] frame = {label.offset, new ArrayList<>(locals)};
+            if (!frames.isEmpty() && (Integer) frames.get(frames.size() - 1)[0] == label.offset) {
+                frames.set(frames.size() - 1, frame);
+            } else {
+                frames.add(frame);
+            }
+            stack = 0;
+            return this;
+        }
+
+        private Code varInsn (int opcode, int slot, int stackChange) {
+            if (slot < 256) {
+                code.u1(opcode).u1(slot);
+            } else {
+                code.u1(0xc4).u1(opcode).u2(slot);
+            }
+            return adjust(stackChange);
+        }
+
+        private Code adjust (int stackChange) {
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+            return this;
+        }
+
+        void writeTo (Bytes out) {
+            Bytes attributes = new Bytes();
+            int attributeCount = 0;
+            if (!frames.isEmpty()) {
+                Bytes table = new Bytes();
+                int previous = -1;
+                for (Object[] frame : frames) {
+                    int offset = (Integer) frame[0];
+                    @SuppressWarnings("unchecked")
+                    List<String> types = (List<String>) frame[1];
+                    // full_frame with an empty operand stack
+                    table.u1(255).u2(offset - previous - 1).u2(types.size());
+                    for (String type : types) {
+                        verificationType(table, type);
+                    }
+                    table.u2(0);
+                    previous = offset;
+                }
+                attributes.u2(utf8("StackMapTable")).u4(2 + table.length).u2(frames.size()).bytes(table);
+                attributeCount++;
+            }
+
+            out.u2(access).u2(name).u2(descriptor).u2(1);
+            out.u2(utf8("Code")).u4(12 + code.length + attributes.length)
+                .u2(maxStack).u2(maxLocals).u4(code.length).bytes(code)
+                .u2(0)
+                .u2(attributeCount).bytes(attributes);
+        }
+
+        private void verificationType (Bytes table, String type) {
+            switch (type.charAt(0)) {
+                case 'L':
+                    table.u1(7).u2(classInfo(type.substring(1, type.length() - 1)));
+                    break;
+                case '[':
+                    table.u1(7).u2(classInfo(type));
+                    break;
+                case 'F':
+                    table.u1(2);
+                    break;
+                case 'D':
+                    table.u1(3);
+                    break;
+                case 'J':
+                    table.u1(4);
+                    break;
+                default:
+                    table.u1(1);
+            }
+        }
+    }
+
+    /**
+     * A branch target.
+     */
+    static final class Label {
+        private int offset = -1;
+        private final List<int[]> fixups = new ArrayList<>();
+    }
+
+    private static List<String> parseParameters (String descriptor) {
+        List<String> types = new ArrayList<>();
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            int start = i;
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+            types.add(descriptor.substring(start, i));
+        }
+        return types;
+    }
+
+    private static int argumentSize (String descriptor) {
+        int size = 0;
+        for (String type : parseParameters(descriptor)) {
+            size += size(type);
+        }
+        return size;
+    }
+
+    private static int returnSize (String descriptor) {
+        String type = descriptor.substring(descriptor.indexOf(')') + 1);
+        return type.equals("V") ? 0 : size(type);
+    }
+
+    private static int size (String type) {
+        return type.equals("J") || type.equals("D") ? 2 : 1;
+    }
+
+    private static int loadOpcode (String type) {
+        switch (type.charAt(0)) {
+            case 'J':
+                return 0x16;
+            case 'F':
+                return 0x17;
+            case 'D':
+                return 0x18;
+            case 'L':
+            case '[':
+                return 0x19;
+            default:
+                return 0x15;
+        }
+    }
+
+    /**
+     * A growable big-endian byte buffer.
+     */
+    private static final class Bytes {
+        private byte[] data = new byte[64];
+        private int length;
+
+        Bytes u1 (int value) {
+            ensure(1);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        Bytes u2 (int value) {
+            return u1(value >>> 8).u1(value);
+        }
+
+        Bytes u4 (int value) {
+            return u2(value >>> 16).u2(value);
+        }
+
+        Bytes bytes (Bytes other) {
+            ensure(other.length);
+            System.arraycopy(other.data, 0, data, length, other.length);
+            length += other.length;
+            return this;
+        }
+
+        /**
+         * Writes a string in the modified UTF-8 encoding of class files, prefixed with its length.
+         */
+        Bytes utf (String value) {
+            int position = length;
+            u2(0);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x01 && c <= 0x7f) {
+                    u1(c);
+                } else if (c <= 0x7ff) {
+                    u1(0xc0 | (c >> 6)).u1(0x80 | (c & 0x3f));
+                } else {
+                    u1(0xe0 | (c >> 12)).u1(0x80 | ((c >> 6) & 0x3f)).u1(0x80 | (c & 0x3f));
+                }
+            }
+            set2(position, length - position - 2);
+            return this;
+        }
+
+        void set2 (int position, int value) {
+            data[position] = (byte) (value >>> 8);
+            data[position + 1] = (byte) value;
+        }
+
+        byte[] toByteArray () {
+            return Arrays.copyOf(data, length);
+        }
+
+        private void ensure (int size) {
+            if (length + size > data.length) {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, length + size));
+            }
+        }
+    }
+}
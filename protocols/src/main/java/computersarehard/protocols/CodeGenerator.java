@@ -0,0 +1,23 @@
+package computersarehard.protocols;
+
+/**
+ * The backend that generates the classes of a protocol's dispatcher. Selected per protocol with
+ * {@link ProtocolOptions#withCodeGenerator(CodeGenerator)}.
+ */
+public enum CodeGenerator {
+    /**
+     * Compiles generated classes from source with Javassist and defines them through the protocol interface's class
+     * loader, which requires {@code --add-opens java.base/java.lang=ALL-UNNAMED} on Java 9 and later. This is the
+     * default.
+     */
+    JAVASSIST,
+
+    /**
+     * Writes the bytecode of generated classes directly and defines them through a
+     * {@link java.lang.invoke.MethodHandles.Lookup} in the protocol interface's package, as hidden classes on Java 15
+     * and later. Nothing is compiled at runtime and {@code java.lang} does not need to be opened. Hidden classes are
+     * not registered with the class loader, so the classes of protocols that are no longer referenced can be unloaded.
+     * In a named module the interface's package must be open to this library.
+     */
+    BYTECODE
+}
@@ -0,0 +1,426 @@
+package computersarehard.protocols;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A cache of values computed per {@link Class} that supports removing selected entries.
+ *
+ * Values are stored by the JVM alongside each cached {@link Class} (see {@link ClassValue}) rather than in a map owned
+ * by the cache, so a cached type (and its class loader) can be unloaded independently of the cache. Lookups of cached
+ * types are a single hash probe and never lock. The cached types are tracked through weak references so entries can be
+ * counted, evicted by a predicate over their type and evicted once the cache grows beyond its capacity.
+ *
+ * Generated classes such as lambdas and proxies can optionally be canonicalized: all types with the same superclass and
+ * interfaces share a single value which is computed once and counts as a single entry. The value is still reachable
+ * from each of these types after the shared entry has been evicted, it just is no longer handed to new types.
+ *
+ * @param <V> The type of the cached values.
+ */
+final class DispatchCache<V extends DispatchCache.Entry> {
+    private final Function<Class<?>, V> compute;
+    private final Predicate<Class<?>> canonical;
+    private final int capacity;
+    private final boolean secondChance;
+    private final ClassValue<V> values;
+    private final ConcurrentHashMap<Shape, V> shapes = new ConcurrentHashMap<>();
+    // Tracked keys mapped to themselves, so removing an equal key yields the instance in the eviction queue.
+    private final ConcurrentHashMap<Key, Key> keys = new ConcurrentHashMap<>();
+    private final Queue<Key> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // Approximate number of removed keys still in the eviction queue.
+    private final AtomicInteger stale = new AtomicInteger();
+    private final AtomicLong evictions = new AtomicLong();
+    private final ReferenceQueue<Class<?>> unloaded = new ReferenceQueue<>();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param compute Computes the value for a type on a cache miss.
+     * @param canonical Selects the types which share a value with all types of the same shape or null to cache every
+     * type separately.
+     * @param capacity The maximum number of entries or 0 for no limit.
+     * @param policy Selects the entry to evict once the capacity is exceeded.
+     */
+    DispatchCache (Function<Class<?>, V> compute, Predicate<Class<?>> canonical, int capacity, EvictionPolicy policy) {
+        this.compute = compute;
+        this.canonical = canonical;
+        this.capacity = capacity;
+        this.secondChance = capacity > 0 && policy == EvictionPolicy.SECOND_CHANCE;
+        this.values = new ClassValue<V>() {
+            @Override
+            protected V computeValue (Class<?> type) {
+                return DispatchCache.this.computeValue(type);
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value for the given type, computing it on a miss.
+     *
+     * @param type The type.
+     * @return the cached value.
+     */
+    V get (Class<?> type) {
+        V value = values.get(type);
+        if (secondChance && !value.referenced) {
+            value.referenced = true;
+        }
+        return value;
+    }
+
+    /**
+     * Removes the cached value for the given type. The next {@link #get(Class)} computes it again.
+     *
+     * @param type The type.
+     */
+    void remove (Class<?> type) {
+        Key key = canonical != null && canonical.test(type) ? new Shape(type, null) : new TypeKey(type, null, null);
+        untrack(key);
+        key.discard();
+        values.remove(type);
+    }
+
+    /**
+     * Removes the cached values of all types matching the predicate. Canonicalized entries are removed if the predicate
+     * matches their superclass or one of their interfaces.
+     *
+     * @param predicate Selects the types to evict.
+     * @return the number of evicted entries.
+     */
+    int evict (Predicate<Class<?>> predicate) {
+        expunge();
+        int evicted = 0;
+        for (Iterator<Key> iterator = keys.keySet().iterator(); iterator.hasNext();) {
+            Key key = iterator.next();
+            if (key.matches(predicate) && untrack(key)) {
+                key.discard();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Returns the types with an entry of their own. Types sharing a canonicalized entry are not included since the
+     * cache does not keep track of them.
+     *
+     * @return the cached types.
+     */
+    List<Class<?>> types () {
+        expunge();
+        List<Class<?>> types = new ArrayList<>();
+        for (Key key : keys.keySet()) {
+            Class<?> type = key instanceof DispatchCache.TypeKey ? ((DispatchCache<?>.TypeKey) key).get() : null;
+            if (type != null) {
+                types.add(type);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Returns the number of entries. Types that were unloaded but not yet reclaimed may be included.
+     *
+     * @return the number of entries.
+     */
+    int size () {
+        expunge();
+        return size.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the capacity.
+     *
+     * @return the number of entries evicted to stay within the capacity.
+     */
+    long evictions () {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of keys in the eviction queue, including removed keys that have not been dropped yet.
+     *
+     * @return the length of the eviction queue.
+     */
+    int queued () {
+        return order.size();
+    }
+
+    private V computeValue (Class<?> type) {
+        expunge();
+        if (canonical == null || !canonical.test(type)) {
+            V value = compute.apply(type);
+            track(new TypeKey(type, value, unloaded));
+            return value;
+        }
+
+        Shape shape = new Shape(type, unloaded);
+        V value = shapes.get(shape);
+        if (value == null) {
+            value = compute.apply(type);
+            shape.entry = value;
+            V existing = shapes.putIfAbsent(shape, value);
+            if (existing != null) {
+                return existing;
+            }
+            track(shape);
+        }
+        return value;
+    }
+
+    private void track (Key key) {
+        if (keys.putIfAbsent(key, key) != null) {
+            return;
+        }
+        size.incrementAndGet();
+        if (capacity > 0) {
+            order.add(key);
+            trim();
+        }
+    }
+
+    private void trim () {
+        while (size.get() > capacity) {
+            Key key = order.poll();
+            if (key == null) {
+                return;
+            }
+            if (key.isRemoved()) {
+                continue;
+            }
+            Entry entry = key.entry();
+            if (secondChance && entry.referenced) {
+                // Used since it was last considered, move it to the back of the queue.
+                entry.referenced = false;
+                order.add(key);
+            } else if (keys.remove(key, key)) {
+                size.decrementAndGet();
+                key.discard();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stops tracking the given key, or the tracked key equal to it.
+     *
+     * @return true if the key was tracked.
+     */
+    private boolean untrack (Key key) {
+        Key tracked = keys.remove(key);
+        if (tracked == null) {
+            return false;
+        }
+        size.decrementAndGet();
+        if (capacity > 0) {
+            // The key stays in the eviction queue until it is polled. Drop removed keys once they outnumber the
+            // live ones, so evicting and resolving types again below the capacity does not grow the queue.
+            tracked.remove();
+            if (stale.incrementAndGet() > size.get()) {
+                stale.set(0);
+                order.removeIf(Key::isRemoved);
+            }
+        }
+        return true;
+    }
+
+    private void expunge () {
+        for (Reference<?> reference = unloaded.poll(); reference != null; reference = unloaded.poll()) {
+            Key key = reference instanceof Part ? ((Part) reference).shape : (Key) reference;
+            untrack(key);
+            key.discard();
+        }
+    }
+
+    /**
+     * Base class of cached values.
+     */
+    abstract static class Entry {
+        // Plain field: set when the entry is used, cleared when it is spared from eviction. Lost updates only change
+        // which entry is evicted.
+        boolean referenced;
+    }
+
+    /**
+     * A tracked entry. Keys have identity semantics on the types they refer to and are usable as set elements.
+     */
+    private interface Key {
+        Entry entry ();
+
+        boolean matches (Predicate<Class<?>> predicate);
+
+        void discard ();
+
+        /**
+         * Marks the key as no longer tracked.
+         */
+        void remove ();
+
+        boolean isRemoved ();
+    }
+
+    /**
+     * The key of a value cached for a single type.
+     */
+    private final class TypeKey extends WeakReference<Class<?>> implements Key {
+        private final Entry entry;
+        private final int hash;
+        private volatile boolean removed;
+
+        TypeKey (Class<?> type, Entry entry, ReferenceQueue<Class<?>> queue) {
+            super(type, queue);
+            this.entry = entry;
+            this.hash = System.identityHashCode(type);
+        }
+
+        @Override
+        public Entry entry () {
+            return entry;
+        }
+
+        @Override
+        public boolean matches (Predicate<Class<?>> predicate) {
+            Class<?> type = get();
+            return type != null && predicate.test(type);
+        }
+
+        @Override
+        public void discard () {
+            Class<?> type = get();
+            if (type != null) {
+                values.remove(type);
+            }
+        }
+
+        @Override
+        public void remove () {
+            removed = true;
+        }
+
+        @Override
+        public boolean isRemoved () {
+            return removed;
+        }
+
+        @Override
+        public int hashCode () {
+            return hash;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DispatchCache.TypeKey)) {
+                return false;
+            }
+            Object type = get();
+            return type != null && type == ((DispatchCache<?>.TypeKey) o).get();
+        }
+    }
+
+    /**
+     * The key of a value shared by all types with the same superclass and interfaces.
+     */
+    private final class Shape implements Key {
+        private final Part[] parts;
+        private final int hash;
+        // Plain field: assigned before the shape is published through the concurrent map.
+        private Entry entry;
+        private volatile boolean removed;
+
+        Shape (Class<?> type, ReferenceQueue<Class<?>> queue) {
+            Class<?>[] interfaces = type.getInterfaces();
+            parts = new Part[interfaces.length + 1];
+            parts[0] = new Part(type.getSuperclass(), this, queue);
+            int hash = System.identityHashCode(type.getSuperclass());
+            for (int i = 0; i < interfaces.length; i++) {
+                parts[i + 1] = new Part(interfaces[i], this, queue);
+                hash = 31 * hash + System.identityHashCode(interfaces[i]);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public Entry entry () {
+            return entry;
+        }
+
+        @Override
+        public boolean matches (Predicate<Class<?>> predicate) {
+            for (Part part : parts) {
+                Class<?> type = part.get();
+                if (type != null && predicate.test(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void discard () {
+            shapes.remove(this);
+        }
+
+        @Override
+        public void remove () {
+            removed = true;
+        }
+
+        @Override
+        public boolean isRemoved () {
+            return removed;
+        }
+
+        @Override
+        public int hashCode () {
+            return hash;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DispatchCache.Shape)) {
+                return false;
+            }
+            Part[] other = ((DispatchCache<?>.Shape) o).parts;
+            if (parts.length != other.length) {
+                return false;
+            }
+            for (int i = 0; i < parts.length; i++) {
+                Object type = parts[i].get();
+                if (type == null || type != other[i].get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A weak reference to the superclass or an interface of a shape.
+     */
+    private static final class Part extends WeakReference<Class<?>> {
+        final Key shape;
+
+        Part (Class<?> type, Key shape, ReferenceQueue<Class<?>> queue) {
+            super(type, queue);
+            this.shape = shape;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package computersarehard.protocols;
+
+/**
+ * The strategy a generated dispatcher uses to route protocol method calls to implementations. Selected per protocol
+ * with {@link ProtocolOptions#withEngine(DispatchEngine)}.
+ */
+public enum DispatchEngine {
+    /**
+     * Each protocol method looks up the implementation for the dispatch argument's type in the protocol's dispatch
+     * table and invokes the method on it through the protocol interface. This is the default.
+     */
+    LOOKUP,
+
+    /**
+     * Each protocol method is linked through an invokedynamic call site. The call site keeps a short chain of exact
+     * receiver class checks that invoke the resolved implementation directly, which lets the JIT inline
+     * implementations at hot call sites. Call sites are relinked through a {@link java.lang.invoke.SwitchPoint} when
+     * the protocol is extended and fall back to a table lookup once they have seen too many receiver classes.
+     *
+     * Each protocol defined with this engine generates a class of its own.
+     */
+    INVOKEDYNAMIC
+}
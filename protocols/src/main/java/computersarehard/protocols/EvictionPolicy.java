@@ -0,0 +1,18 @@
+package computersarehard.protocols;
+
+/**
+ * Selects the cached resolution a protocol's dispatch cache evicts once it holds more types than its capacity.
+ * Configured with {@link ProtocolOptions#withCacheCapacity(int, EvictionPolicy)}.
+ */
+public enum EvictionPolicy {
+    /**
+     * Evicts the type that was cached first.
+     */
+    FIFO,
+
+    /**
+     * Approximates least recently used eviction with the second chance (clock) algorithm: types are considered in the
+     * order they were cached, and a type that has been dispatched since it was last considered is spared once.
+     */
+    SECOND_CHANCE
+}
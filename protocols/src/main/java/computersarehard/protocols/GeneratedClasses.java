@@ -0,0 +1,75 @@
+package computersarehard.protocols;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Classes generated once per protocol interface and shared by all of its protocols, whichever code generator
+ * generated them.
+ */
+final class GeneratedClasses {
+    // Shared classes by interface and name. Hidden classes cannot be found by name, so every shared class is kept
+    // here. A task is in the map while its class is generated, other threads asking for the class wait for it.
+    private static final ClassValue<ConcurrentHashMap<String, FutureTask<Class<?>>>> SHARED_CLASSES =
+        new ClassValue<ConcurrentHashMap<String, FutureTask<Class<?>>>>() {
+            @Override
+            protected ConcurrentHashMap<String, FutureTask<Class<?>>> computeValue (Class<?> type) {
+                return new ConcurrentHashMap<>();
+            }
+        };
+
+    private GeneratedClasses () {
+    }
+
+    /**
+     * Returns a class shared by all protocols of the interface. A class of the same name the interface's class loader
+     * can load, e.g. one generated ahead of time (see {@link computersarehard.protocols.annotation.Protocol}), is
+     * used as is. Otherwise the class is generated on first use, once, even if several threads ask for it at the same
+     * time. A failure is not remembered: the next call generates the class again.
+     */
+    static Class<?> shared (Class<?> api, String className, Callable<Class<?>> generate) throws Exception {
+        ConcurrentHashMap<String, FutureTask<Class<?>>> classes = SHARED_CLASSES.get(api);
+        FutureTask<Class<?>> task = classes.get(className);
+        if (task == null) {
+            FutureTask<Class<?>> newTask = new FutureTask<>(() -> {
+                Class<?> existing = find(api, className);
+                return existing != null ? existing : generate.call();
+            });
+            task = classes.putIfAbsent(className, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            classes.remove(className, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+
+    /**
+     * Returns the class of the given name if the interface's class loader can load it, or null. Loads the class
+     * without looking for its class file first: native images, for instance, include the classes generated ahead of
+     * time but not their class files.
+     */
+    static Class<?> find (Class<?> api, String className) {
+        ClassLoader loader = api.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        try {
+            return Class.forName(className, false, loader);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package computersarehard.protocols;
+
+/**
+ * Thrown when a protocol method is invoked with a dispatch argument whose type has no implementation of the protocol
+ * and the protocol has no fallback implementation.
+ *
+ * Protocols defined with {@link ProtocolOptions#withStacklessFailures(boolean)} throw instances without a stack trace,
+ * which are cheap to create when failures are expected. The message is only built when it is requested.
+ */
+public class NoImplementationException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final Class<?> protocol;
+    private final Class<?> dispatchType;
+
+    NoImplementationException (Class<?> protocol, Class<?> dispatchType, boolean stackTrace) {
+        this.protocol = protocol;
+        this.dispatchType = dispatchType;
+        if (stackTrace) {
+            super.fillInStackTrace();
+        }
+    }
+
+    /**
+     * Returns the protocol's interface.
+     *
+     * @return the protocol's interface.
+     */
+    public Class<?> getProtocol () {
+        return protocol;
+    }
+
+    /**
+     * Returns the type without an implementation, {@link Void} for null.
+     *
+     * @return the type without an implementation.
+     */
+    public Class<?> getDispatchType () {
+        return dispatchType;
+    }
+
+    @Override
+    public String getMessage () {
+        return "Protocol " + protocol.getName() + " is not defined for " + dispatchType.getName();
+    }
+
+    @Override
+    public Throwable fillInStackTrace () {
+        // Filled in by the constructor unless the stack trace is disabled.
+        return this;
+    }
+}
@@ -0,0 +1,220 @@
+package computersarehard.protocols;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An immutable map keyed by {@link Class} identity which is updated by creating a new version.
+ *
+ * Entries are stored in a hash array mapped trie branching on five bits of the key's identity hash code per level, so
+ * {@link #with(Class, Object)} copies a single path of at most seven small nodes instead of the whole map and leaves
+ * the original untouched. All state is held in final fields so versions can be shared between threads without
+ * synchronization.
+ */
+final class PersistentClassMap {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentClassMap EMPTY = new PersistentClassMap(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentClassMap (Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty map.
+     *
+     * @return a map without entries.
+     */
+    static PersistentClassMap empty () {
+        return EMPTY;
+    }
+
+    /**
+     * Returns the value for the given class or null if the class is not a key of this map.
+     *
+     * @param type The key.
+     * @return the value for the given class or null.
+     */
+    Object get (Class<?> type) {
+        return root == null ? null : root.get(type, System.identityHashCode(type), 0);
+    }
+
+    /**
+     * Returns whether the given class is a key of this map.
+     *
+     * @param type The key.
+     * @return true if the map has an entry for the class.
+     */
+    boolean containsKey (Class<?> type) {
+        return get(type) != null;
+    }
+
+    /**
+     * Returns a map containing the entries of this map and the given entry.
+     *
+     * @param type The key to add or replace.
+     * @param value The value for the key, must not be null.
+     * @return the new map.
+     */
+    PersistentClassMap with (Class<?> type, Object value) {
+        int hash = System.identityHashCode(type);
+        if (root == null) {
+            return new PersistentClassMap(Node.leaf(type, value, hash, 0), 1);
+        }
+        boolean added = root.get(type, hash, 0) == null;
+        return new PersistentClassMap(root.with(type, value, hash, 0), added ? size + 1 : size);
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries.
+     */
+    int size () {
+        return size;
+    }
+
+    /**
+     * Copies the entries into a mutable map.
+     *
+     * @return a new {@link IdentityHashMap} with the entries of this map.
+     */
+    Map<Class<?>, Object> toMap () {
+        Map<Class<?>, Object> entries = new IdentityHashMap<>(size);
+        if (root != null) {
+            root.copyTo(entries);
+        }
+        return entries;
+    }
+
+    /**
+     * A trie node. Entries are stored in pairs, either a key and its value or null and a child node. Pairs are ordered
+     * by the bit they occupy in the bitmap. Keys with equal hash codes end up in a collision node at the bottom of the
+     * trie which has no bitmap and is searched linearly.
+     */
+    private static final class Node {
+        private final int bitmap;
+        private final Object[] pairs;
+        private final boolean collision;
+
+        private Node (int bitmap, Object[] pairs, boolean collision) {
+            this.bitmap = bitmap;
+            this.pairs = pairs;
+            this.collision = collision;
+        }
+
+        static Node leaf (Class<?> type, Object value, int hash, int shift) {
+            return new Node(bit(hash, shift), new Object[] {type, value}, false);
+        }
+
+        Object get (Class<?> type, int hash, int shift) {
+            Node node = this;
+            while (!node.collision) {
+                int bit = bit(hash, shift);
+                if ((node.bitmap & bit) == 0) {
+                    return null;
+                }
+                int index = node.index(bit);
+                Object key = node.pairs[index];
+                if (key != null) {
+                    return key == type ? node.pairs[index + 1] : null;
+                }
+                node = (Node) node.pairs[index + 1];
+                shift += BITS;
+            }
+            for (int i = 0; i < node.pairs.length; i += 2) {
+                if (node.pairs[i] == type) {
+                    return node.pairs[i + 1];
+                }
+            }
+            return null;
+        }
+
+        Node with (Class<?> type, Object value, int hash, int shift) {
+            if (collision) {
+                for (int i = 0; i < pairs.length; i += 2) {
+                    if (pairs[i] == type) {
+                        return new Node(0, replace(i + 1, value), true);
+                    }
+                }
+                return new Node(0, insert(pairs.length, type, value), true);
+            }
+
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                return new Node(bitmap | bit, insert(index, type, value), false);
+            }
+
+            Object key = pairs[index];
+            if (key == null) {
+                Node child = ((Node) pairs[index + 1]).with(type, value, hash, shift + BITS);
+                return new Node(bitmap, replace(index + 1, child), false);
+            }
+            if (key == type) {
+                return new Node(bitmap, replace(index + 1, value), false);
+            }
+
+            // Push both entries down into a new child
+            Class<?> other = (Class<?>) key;
+            Node child = merge(other, pairs[index + 1], System.identityHashCode(other), type, value, hash,
+                shift + BITS);
+            Object[] copy = replace(index + 1, child);
+            copy[index] = null;
+            return new Node(bitmap, copy, false);
+        }
+
+        private static Node merge (Class<?> type1, Object value1, int hash1, Class<?> type2, Object value2, int hash2,
+            int shift) {
+            if (shift >= Integer.SIZE) {
+                return new Node(0, new Object[] {type1, value1, type2, value2}, true);
+            }
+            int bit1 = bit(hash1, shift);
+            int bit2 = bit(hash2, shift);
+            if (bit1 == bit2) {
+                return new Node(bit1, new Object[] {null, merge(type1, value1, hash1, type2, value2, hash2,
+                    shift + BITS)}, false);
+            }
+            return Integer.compareUnsigned(bit1, bit2) < 0
+                ? new Node(bit1 | bit2, new Object[] {type1, value1, type2, value2}, false)
+                : new Node(bit1 | bit2, new Object[] {type2, value2, type1, value1}, false);
+        }
+
+        void copyTo (Map<Class<?>, Object> entries) {
+            for (int i = 0; i < pairs.length; i += 2) {
+                if (pairs[i] != null) {
+                    entries.put((Class<?>) pairs[i], pairs[i + 1]);
+                } else {
+                    ((Node) pairs[i + 1]).copyTo(entries);
+                }
+            }
+        }
+
+        private int index (int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private Object[] replace (int index, Object value) {
+            Object[] copy = pairs.clone();
+            copy[index] = value;
+            return copy;
+        }
+
+        private Object[] insert (int index, Object key, Object value) {
+            Object[] copy = new Object[pairs.length + 2];
+            System.arraycopy(pairs, 0, copy, 0, index);
+            copy[index] = key;
+            copy[index + 1] = value;
+            System.arraycopy(pairs, index, copy, index + 2, pairs.length - index);
+            return copy;
+        }
+
+        private static int bit (int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+    }
+}
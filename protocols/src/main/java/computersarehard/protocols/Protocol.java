@@ -0,0 +1,188 @@
+package computersarehard.protocols;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A protocol definition. New implementations can be registered with {@link #extend(Class, Object)} and the dispaptch
+ * instance (used to invoke protocol methods) can be obtained with {@link #getDispatcher()}.
+ *
+ * Instances of this class are created when defining a protocol using the {@link Protocols#define(Class)} factory
+ * method.
+ *
+ * @param <T> The protocol's type.
+ */
+public final class Protocol<T> {
+    private volatile T dispatcher;
+    // Completes once the dispatcher generated in the background has replaced the interim one.
+    CompletableFuture<Void> generation = CompletableFuture.completedFuture(null);
+
+    Protocol (T dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Extends a type with a protocol implementation for this protocol.
+     *
+     * The registered implementation will be used for all types that inherit or implement the specified type unless
+     * a more specific (closer in the type hierarchy) implementation is provided. Implementations can only be registered
+     * once per specific type.
+     *
+     * @param type The type to extend with a protocol implementation. Can be a Class or Interface. All classes extending
+     * or implementing this type will also inherit the protocol implementation unless they have been extended with
+     * a more specific (closer in the type hierarchy) implementation. The {@link Void} class can be used to dispatch on
+     * null values.
+     * @param implementation The implementation of the protocol for the type to be extended.
+     * @throws IllegalStateException if the type has already been extended or the protocol is frozen.
+     */
+    public void extend (Class<?> type, T implementation) {
+        state().protocols$$extend(type, implementation);
+    }
+
+    /**
+     * Extends several types with protocol implementations at once.
+     *
+     * Equivalent to calling {@link #extend(Class, Object)} for every entry, except that either all or none of the
+     * implementations are registered and dispatch caches are reset only once. Prefer this method when registering many
+     * implementations, e.g. at startup.
+     *
+     * @param implementations The implementations of the protocol by the type they extend.
+     * @throws IllegalStateException if one of the types has already been extended or the protocol is frozen.
+     */
+    public void extendAll (Map<Class<?>, ? extends T> implementations) {
+        state().protocols$$extendAll(implementations);
+    }
+
+    /**
+     * Registers the implementation used for dispatch arguments whose type has no implementation.
+     *
+     * The fallback does not take part in the type hierarchy lookup, it only applies when no registered type matches.
+     * An implementation for {@link Object} therefore always takes precedence. Types resolved to the fallback are
+     * cached like any other type. The fallback can only be registered once.
+     *
+     * @param implementation The fallback implementation of the protocol.
+     * @throws IllegalStateException if the protocol already has a fallback implementation or is frozen.
+     */
+    public void setFallback (T implementation) {
+        state().protocols$$setFallback(implementation);
+    }
+
+    /**
+     * Freezes the protocol's implementations. Any further call to {@link #extend(Class, Object)} fails.
+     *
+     * The registered implementations are compiled into an immutable table that is read without volatile reads or
+     * locks. A type resolved through the type hierarchy publishes a copy of the table with an entry for it, which is
+     * never evicted again. Freeze a protocol once all of its implementations have been registered, e.g. at the end of
+     * the static initializer that registers them. Freezing a frozen protocol has no effect.
+     */
+    public void freeze () {
+        state().protocols$$freeze();
+    }
+
+    /**
+     * Returns whether the protocol is frozen.
+     *
+     * @return true if {@link #freeze()} has been called.
+     */
+    public boolean isFrozen () {
+        return state().protocols$$isFrozen();
+    }
+
+    /**
+     * Returns whether instances of the given type can be dispatched, i.e. whether the type or one of its supertypes
+     * has an implementation or the protocol has a fallback implementation.
+     *
+     * Answers are cached per type and stay valid until the protocol is extended, just like dispatch.
+     *
+     * @param type The type to check. Use {@link Void} to check null values.
+     * @return true if protocol methods can be invoked with instances of the type.
+     */
+    public boolean satisfies (Class<?> type) {
+        Protocols.checkNotNull(type, "type argument is required.");
+        return state().protocols$$satisfies(type);
+    }
+
+    /**
+     * Returns whether protocol methods can be invoked with the given value as the dispatch argument. Note that a
+     * {@link Class} argument (or a null literal) selects {@link #satisfies(Class)} instead.
+     *
+     * @param value The value to check, can be null.
+     * @return true if protocol methods can be invoked with the value.
+     */
+    public boolean satisfies (Object value) {
+        return state().protocols$$implementationFor(value) != null;
+    }
+
+    /**
+     * Returns the implementation protocol methods invoked with the given value as the dispatch argument delegate to.
+     *
+     * Callers that invoke several protocol methods with the same value can resolve the implementation once and invoke
+     * it directly instead of going through {@link #getDispatcher()} for each call. The lookup uses the same cache as
+     * dispatch. The returned implementation is not updated when the protocol is extended later on.
+     *
+     * @param value The dispatch argument, can be null.
+     * @return the implementation or {@link Optional#empty()} if the value's type has no implementation.
+     */
+    @SuppressWarnings("unchecked")
+    public Optional<T> implementationFor (Object value) {
+        return Optional.ofNullable((T) state().protocols$$implementationFor(value));
+    }
+
+    /**
+     * Returns an instance of the protocol's interface that invokes the implementation for the given type without
+     * looking at the dispatch argument.
+     *
+     * Loops that invoke a protocol method on many values of a type known up front can call the handle instead of
+     * {@link #getDispatcher()} to skip the dispatch. The handle resolves the implementation again once the protocol has
+     * been extended, so it always invokes the implementation the dispatcher would choose for the type. Values of any
+     * other type must not be passed to the handle.
+     *
+     * For protocols with {@link ProtocolOptions#withDirectImplementations direct implementations}, types implementing
+     * the protocol's interface are bound to the dispatcher, which invokes the dispatch argument itself.
+     *
+     * @param type The type of the dispatch arguments the handle is invoked with. Use {@link Void} for null values.
+     * @return a handle bound to the implementation for the type.
+     * @throws NoImplementationException if the type has no implementation.
+     */
+    @SuppressWarnings("unchecked")
+    public T bind (Class<?> type) {
+        Protocols.checkNotNull(type, "type argument is required.");
+        try {
+            return (T) Protocols.makeBinding(state(), dispatcher, type);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns statistics about the protocol's dispatch cache.
+     *
+     * @return a snapshot of the current statistics.
+     */
+    public ProtocolStatistics getStatistics () {
+        return state().protocols$$getStatistics();
+    }
+
+    /**
+     * Returns an instance of the protocol's interface that must be used to invoke protocol methods.
+     *
+     * Protocols defined with {@link ProtocolOptions#withBackgroundGeneration} return an interim dispatcher until the
+     * generated one is ready.
+     *
+     * @return an instance of the protocol's interface that must be used to invoke protocol methods.
+     */
+    public T getDispatcher () {
+        return dispatcher;
+    }
+
+    void setDispatcher (T dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    Protocols.Dispatcher state () {
+        return Protocols.stateOf(dispatcher);
+    }
+}
@@ -0,0 +1,172 @@
+package computersarehard.protocols;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of protocols whose implementations are resolved together, created with
+ * {@link Protocols#bundle(ProtocolOptions, Class[])}.
+ *
+ * Code that invokes several protocols on the same value can resolve all of their implementations with a single
+ * lookup:
+ *
+ * <pre>
+ * ProtocolBundle.Implementations implementations = bundle.resolve(value);
+ * implementations.get(Debug.class).format(value);
+ * implementations.get(Associative.class).keys(value);
+ * </pre>
+ *
+ * The bundle caches the implementations of all of its protocols per type. Extending any of the protocols invalidates
+ * the whole cache, which is then refreshed on the next lookup of each type. The protocols are registered with and
+ * frozen through {@link #get(Class)} as usual and can also be invoked on their own through their dispatchers.
+ */
+public final class ProtocolBundle {
+    private final Class<?>[] apis;
+    private final Protocol<?>[] protocols;
+    private final Protocols.Dispatcher[] states;
+    private final boolean stacklessFailures;
+    private final DispatchCache<Entry> cache;
+    // Incremented when one of the protocols is extended. Cached implementations resolved before are stale.
+    private final AtomicInteger generation = new AtomicInteger();
+
+    ProtocolBundle (Class<?>[] apis, Protocol<?>[] protocols, ProtocolOptions options) {
+        this.apis = apis;
+        this.protocols = protocols;
+        this.states = new Protocols.Dispatcher[protocols.length];
+        for (int i = 0; i < protocols.length; i++) {
+            states[i] = protocols[i].state();
+            states[i].protocols$$setBundle(this);
+        }
+        this.stacklessFailures = options.isStacklessFailures();
+        this.cache = new DispatchCache<>(type -> new Entry(resolveAll(type)), null, options.getCacheCapacity(),
+            options.getEvictionPolicy());
+    }
+
+    /**
+     * Returns the protocol of the given interface.
+     *
+     * @param api The protocol's interface.
+     * @param <T> The protocol's type.
+     * @return the protocol.
+     * @throws IllegalArgumentException if the bundle has no protocol for the interface.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Protocol<T> get (Class<T> api) {
+        return (Protocol<T>) protocols[indexOf(apis, api)];
+    }
+
+    /**
+     * Returns the implementations of all protocols in the bundle for the given value's type.
+     *
+     * @param value The dispatch argument, can be null.
+     * @return the implementations for the value's type.
+     */
+    public Implementations resolve (Object value) {
+        return resolve(value == null ? Void.class : value.getClass());
+    }
+
+    /**
+     * Returns the implementations of all protocols in the bundle for the given type.
+     *
+     * @param type The type of the dispatch argument. Use {@link Void} for null values.
+     * @return the implementations for the type.
+     */
+    public Implementations resolve (Class<?> type) {
+        Entry entry = cache.get(type);
+        Implementations implementations = entry.implementations;
+        if (implementations.generation != generation.get()) {
+            implementations = resolveAll(type);
+            entry.implementations = implementations;
+        }
+        return implementations;
+    }
+
+    /**
+     * Called after one of the protocols has been extended.
+     */
+    void invalidate () {
+        generation.incrementAndGet();
+    }
+
+    private Implementations resolveAll (Class<?> type) {
+        // Read first: implementations resolved while a protocol is extended are stamped stale.
+        int current = generation.get();
+        Object[] implementations = new Object[states.length];
+        for (int i = 0; i < states.length; i++) {
+            implementations[i] = states[i].lookup(type);
+        }
+        return new Implementations(apis, type, implementations, current, stacklessFailures);
+    }
+
+    private static int indexOf (Class<?>[] apis, Class<?> api) {
+        for (int i = 0; i < apis.length; i++) {
+            if (apis[i] == api) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Protocol " + (api != null ? api.getName() : null) + " is not bundled.");
+    }
+
+    /**
+     * The implementations of a bundle's protocols for a type. Instances are immutable and are not updated when one of
+     * the protocols is extended later on.
+     */
+    public static final class Implementations {
+        // Does not refer to the bundle: instances are cached in a ClassValue of the bundle, which must not be
+        // reachable from its own values.
+        private final Class<?>[] apis;
+        private final Class<?> type;
+        private final Object[] implementations;
+        private final int generation;
+        private final boolean stacklessFailures;
+
+        Implementations (Class<?>[] apis, Class<?> type, Object[] implementations, int generation,
+            boolean stacklessFailures) {
+            this.apis = apis;
+            this.type = type;
+            this.implementations = implementations;
+            this.generation = generation;
+            this.stacklessFailures = stacklessFailures;
+        }
+
+        /**
+         * Returns the implementation of the given protocol.
+         *
+         * @param api The protocol's interface.
+         * @param <T> The protocol's type.
+         * @return the implementation for the type.
+         * @throws IllegalArgumentException if the bundle has no protocol for the interface.
+         * @throws NoImplementationException if the protocol has no implementation for the type.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get (Class<T> api) {
+            Object implementation = implementations[indexOf(apis, api)];
+            if (implementation == null) {
+                throw new NoImplementationException(api, type, !stacklessFailures);
+            }
+            return (T) implementation;
+        }
+
+        /**
+         * Returns whether the given protocol has an implementation for the type.
+         *
+         * @param api The protocol's interface.
+         * @return true if {@link #get(Class)} returns an implementation.
+         * @throws IllegalArgumentException if the bundle has no protocol for the interface.
+         */
+        public boolean satisfies (Class<?> api) {
+            return implementations[indexOf(apis, api)] != null;
+        }
+    }
+
+    /**
+     * A cached entry. Refreshed in place once stale, so each type keeps a single entry.
+     */
+    private static final class Entry extends DispatchCache.Entry {
+        // Plain field: implementations are immutable. A thread reading a stale value refreshes it again.
+        Implementations implementations;
+
+        Entry (Implementations implementations) {
+            this.implementations = implementations;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package computersarehard.protocols;
+
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+
+/**
+ * Options controlling how {@link Protocols#define(Class, ProtocolOptions)} generates a protocol's dispatcher.
+ *
+ * Instances are immutable. Start from {@link #defaults()} and derive a copy for each option that differs, e.g.
+ * {@code ProtocolOptions.defaults().withEngine(DispatchEngine.INVOKEDYNAMIC)}.
+ */
+public final class ProtocolOptions {
+    private static final ProtocolOptions DEFAULTS = new ProtocolOptions();
+    private static final int MAX_INLINE_CACHE_SIZE = 8;
+
+    private DispatchEngine engine = DispatchEngine.LOOKUP;
+    private CodeGenerator codeGenerator = CodeGenerator.JAVASSIST;
+    private int inlineCacheSize;
+    private int specializationWarmup;
+    private int specializationTypes;
+    private Executor specializationExecutor;
+    private int cacheCapacity;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.FIFO;
+    private boolean canonicalization;
+    private boolean stacklessFailures;
+    private boolean directImplementations;
+    private Executor backgroundGeneration;
+    private Path classCache;
+
+    private ProtocolOptions () {
+    }
+
+    private ProtocolOptions (ProtocolOptions other) {
+        this.engine = other.engine;
+        this.codeGenerator = other.codeGenerator;
+        this.inlineCacheSize = other.inlineCacheSize;
+        this.specializationWarmup = other.specializationWarmup;
+        this.specializationTypes = other.specializationTypes;
+        this.specializationExecutor = other.specializationExecutor;
+        this.cacheCapacity = other.cacheCapacity;
+        this.evictionPolicy = other.evictionPolicy;
+        this.canonicalization = other.canonicalization;
+        this.stacklessFailures = other.stacklessFailures;
+        this.directImplementations = other.directImplementations;
+        this.backgroundGeneration = other.backgroundGeneration;
+        this.classCache = other.classCache;
+    }
+
+    /**
+     * Returns the options used by {@link Protocols#define(Class)}.
+     *
+     * @return the default options.
+     */
+    public static ProtocolOptions defaults () {
+        return DEFAULTS;
+    }
+
+    /**
+     * Returns a copy of these options using the given dispatch engine.
+     *
+     * @param engine The strategy used to route protocol method calls to implementations.
+     * @return a copy of these options using the given dispatch engine.
+     */
+    public ProtocolOptions withEngine (DispatchEngine engine) {
+        Protocols.checkNotNull(engine, "engine argument is required.");
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.engine = engine;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options using the given backend to generate the dispatcher's classes.
+     *
+     * @param generator The backend that generates classes for the protocol.
+     * @return a copy of these options using the given code generator.
+     */
+    public ProtocolOptions withCodeGenerator (CodeGenerator generator) {
+        Protocols.checkNotNull(generator, "generator argument is required.");
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.codeGenerator = generator;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options where each generated protocol method keeps an inline cache with the given number
+     * of slots. Applies to the {@link DispatchEngine#LOOKUP} engine.
+     *
+     * Each slot pairs a receiver class with its implementation and is checked with an exact class comparison before
+     * the protocol's dispatch table. Slots are filled in order as a method sees new receiver classes and are cleared
+     * when the protocol is extended. Once every slot is taken, further receiver classes are looked up in the dispatch
+     * table. Call sites that see one to three receiver classes benefit most.
+     *
+     * @param slots The number of cached receiver classes per method, between 0 (disabled, the default) and 8.
+     * @return a copy of these options using the given inline cache size.
+     */
+    public ProtocolOptions withInlineCacheSize (int slots) {
+        if (slots < 0 || slots > MAX_INLINE_CACHE_SIZE) {
+            throw new IllegalArgumentException("Inline cache size must be between 0 and " + MAX_INLINE_CACHE_SIZE
+                + ".");
+        }
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.inlineCacheSize = slots;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options where the dispatcher profiles the receiver classes it looks up and regenerates
+     * itself once the warm-up window is complete. Applies to the {@link DispatchEngine#LOOKUP} engine.
+     *
+     * The regenerated dispatcher checks the hottest receiver classes, and final classes with a registered
+     * implementation, with exact class comparisons and invokes their implementations through the implementation's
+     * own class where possible. Other receivers are dispatched through the table. The generated class is swapped in
+     * atomically while other threads keep calling. Extending the protocol discards it and starts a new profile.
+     *
+     * The dispatcher is regenerated by the thread whose call completes the warm-up window, which stalls that call
+     * while the class is generated and loaded. Use {@link #withSpecialization(int, int, Executor)} to regenerate it
+     * in the background instead.
+     *
+     * @param warmup The number of table lookups to profile before regenerating. 0 disables profiling (the default).
+     * @param types The maximum number of hot receiver classes, and of final registered classes, to check for.
+     * @return a copy of these options using the given thresholds.
+     */
+    public ProtocolOptions withSpecialization (int warmup, int types) {
+        return withSpecialization(warmup, types, null);
+    }
+
+    /**
+     * Returns a copy of these options where the dispatcher specializes itself like
+     * {@link #withSpecialization(int, int)}, but the specialized dispatcher is generated by the given executor. Calls
+     * keep dispatching through the table until it is ready.
+     *
+     * @param warmup The number of table lookups to profile before regenerating. 0 disables profiling (the default).
+     * @param types The maximum number of hot receiver classes, and of final registered classes, to check for.
+     * @param executor The executor that generates the specialized dispatcher, e.g.
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}, or null to generate it in the dispatching thread.
+     * @return a copy of these options using the given thresholds and executor.
+     */
+    public ProtocolOptions withSpecialization (int warmup, int types, Executor executor) {
+        if (warmup < 0) {
+            throw new IllegalArgumentException("Specialization warm-up must not be negative.");
+        }
+        if (types < 1) {
+            throw new IllegalArgumentException("Specialization must allow at least one type.");
+        }
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.specializationWarmup = warmup;
+        copy.specializationTypes = types;
+        copy.specializationExecutor = executor;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options where the dispatch cache holds at most the given number of types.
+     *
+     * Each receiver class dispatched through the protocol's table is cached along with its resolved implementation.
+     * Applications that create many classes at runtime (e.g. lambdas or proxies) can bound the cache so it does not
+     * grow with every class ever dispatched. Once the cache is full, the policy selects the type to evict. Evicted
+     * types are resolved again when they are dispatched next. Cached types never keep their class loader from being
+     * unloaded.
+     *
+     * @param capacity The maximum number of cached types, 0 for no limit (the default).
+     * @param policy Selects the type to evict once the cache is full.
+     * @return a copy of these options using the given cache capacity.
+     */
+    public ProtocolOptions withCacheCapacity (int capacity, EvictionPolicy policy) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Cache capacity must not be negative.");
+        }
+        Protocols.checkNotNull(policy, "policy argument is required.");
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.cacheCapacity = capacity;
+        copy.evictionPolicy = policy;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options where generated receiver classes share dispatch cache entries.
+     *
+     * When enabled, synthetic classes (e.g. lambdas), hidden classes, {@link java.lang.reflect.Proxy} classes and
+     * classes with {@code $$} in their name (the convention of most bytecode generators) are cached by their
+     * superclass and interfaces. All such classes with the same superclass and interfaces resolve to the same
+     * implementation and take up a single cache entry, unless the class itself has been extended.
+     *
+     * @param canonicalize Whether to share cache entries between generated classes of the same shape. Disabled by
+     * default.
+     * @return a copy of these options using the given setting.
+     */
+    public ProtocolOptions withCanonicalization (boolean canonicalize) {
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.canonicalization = canonicalize;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options where dispatching a type without an implementation throws a
+     * {@link NoImplementationException} without a stack trace.
+     *
+     * Creating the stack trace dominates the cost of a failed dispatch. Disable it for protocols that are probed with
+     * values they may not support and where failures are expected and handled.
+     *
+     * @param stackless Whether failures omit the stack trace. Disabled by default.
+     * @return a copy of these options using the given setting.
+     */
+    public ProtocolOptions withStacklessFailures (boolean stackless) {
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.stacklessFailures = stackless;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options where dispatch arguments that implement the protocol's interface themselves are
+     * invoked directly.
+     *
+     * Every protocol method first checks whether the dispatch argument is an instance of the protocol's interface and,
+     * if so, invokes the method on it without a lookup or registration. Such types pay a single type check and an
+     * interface call, while other types are dispatched as usual. A type's own implementation takes precedence over
+     * implementations registered for it or its supertypes.
+     *
+     * @param direct Whether to invoke dispatch arguments implementing the protocol's interface directly. Disabled by
+     * default.
+     * @return a copy of these options using the given setting.
+     */
+    public ProtocolOptions withDirectImplementations (boolean direct) {
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.directImplementations = direct;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options where the dispatcher's class is generated by the given executor while an interim
+     * dispatcher serves calls.
+     *
+     * {@link Protocols#define(Class, ProtocolOptions)} then returns without generating any code. Until the generated
+     * dispatcher is ready, {@link Protocol#getDispatcher()} returns a {@link java.lang.reflect.Proxy} that looks up
+     * implementations like the generated dispatcher and invokes them reflectively. Once it is ready the generated
+     * dispatcher takes over the protocol's implementations and is returned instead. The interim dispatcher keeps
+     * working, by forwarding to the generated one, for callers that hold on to it, but does not get any faster. Fetch
+     * the dispatcher again where speed matters. Should generation fail, the interim dispatcher stays in place.
+     *
+     * Use this for protocols that are defined at startup but not called right away.
+     *
+     * @param executor The executor that generates the dispatcher, e.g.
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}, or null to generate it in the defining thread (the
+     * default).
+     * @return a copy of these options using the given executor.
+     */
+    public ProtocolOptions withBackgroundGeneration (Executor executor) {
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.backgroundGeneration = executor;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of these options where the dispatcher's class is stored in, and loaded from, the given directory.
+     * Applies to the {@link DispatchEngine#LOOKUP} engine.
+     *
+     * JVMs that define the same protocols on every start, e.g. short-lived batch jobs, load the class generated by an
+     * earlier run instead of generating it again. Entries are specific to the protocol interface's class file, the
+     * options that affect the generated code and the library version; entries that do not match or fail their
+     * checksum are ignored and replaced. Several JVMs can share the directory concurrently. Classes loaded from the
+     * cache are defined like those of {@link CodeGenerator#BYTECODE}, whichever generator wrote them.
+     *
+     * @param directory The cache directory, created on first use, or null to disable the cache (the default).
+     * @return a copy of these options using the given cache directory.
+     */
+    public ProtocolOptions withClassCache (Path directory) {
+        ProtocolOptions copy = new ProtocolOptions(this);
+        copy.classCache = directory;
+        return copy;
+    }
+
+    /**
+     * Returns the strategy used to route protocol method calls to implementations.
+     *
+     * @return the strategy used to route protocol method calls to implementations.
+     */
+    public DispatchEngine getEngine () {
+        return engine;
+    }
+
+    /**
+     * Returns the backend that generates the dispatcher's classes.
+     *
+     * @return the backend that generates the dispatcher's classes.
+     */
+    public CodeGenerator getCodeGenerator () {
+        return codeGenerator;
+    }
+
+    /**
+     * Returns the number of inline cache slots per generated protocol method.
+     *
+     * @return the number of inline cache slots per generated protocol method, 0 if disabled.
+     */
+    public int getInlineCacheSize () {
+        return inlineCacheSize;
+    }
+
+    /**
+     * Returns the number of table lookups profiled before a dispatcher specializes itself.
+     *
+     * @return the number of table lookups profiled before a dispatcher specializes itself, 0 if disabled.
+     */
+    public int getSpecializationWarmup () {
+        return specializationWarmup;
+    }
+
+    /**
+     * Returns the maximum number of receiver classes, and of final registered classes, a specialized dispatcher checks
+     * for.
+     *
+     * @return the maximum number of receiver classes a specialized dispatcher checks for.
+     */
+    public int getSpecializationTypes () {
+        return specializationTypes;
+    }
+
+    /**
+     * Returns the executor that generates specialized dispatchers.
+     *
+     * @return the executor that generates specialized dispatchers, null if they are generated by the dispatching
+     * thread.
+     */
+    public Executor getSpecializationExecutor () {
+        return specializationExecutor;
+    }
+
+    /**
+     * Returns the maximum number of types in the dispatch cache.
+     *
+     * @return the maximum number of types in the dispatch cache, 0 if unlimited.
+     */
+    public int getCacheCapacity () {
+        return cacheCapacity;
+    }
+
+    /**
+     * Returns the policy selecting the type to evict from a full dispatch cache.
+     *
+     * @return the policy selecting the type to evict from a full dispatch cache.
+     */
+    public EvictionPolicy getEvictionPolicy () {
+        return evictionPolicy;
+    }
+
+    /**
+     * Returns whether generated receiver classes share dispatch cache entries.
+     *
+     * @return true if generated receiver classes are cached by their superclass and interfaces.
+     */
+    public boolean isCanonicalization () {
+        return canonicalization;
+    }
+
+    /**
+     * Returns whether failed dispatches throw exceptions without a stack trace.
+     *
+     * @return true if failed dispatches throw exceptions without a stack trace.
+     */
+    public boolean isStacklessFailures () {
+        return stacklessFailures;
+    }
+
+    /**
+     * Returns whether dispatch arguments implementing the protocol's interface are invoked directly.
+     *
+     * @return true if dispatch arguments implementing the protocol's interface are invoked directly.
+     */
+    public boolean isDirectImplementations () {
+        return directImplementations;
+    }
+
+    /**
+     * Returns the executor that generates dispatchers in the background.
+     *
+     * @return the executor that generates dispatchers in the background, null if they are generated by the defining
+     * thread.
+     */
+    public Executor getBackgroundGeneration () {
+        return backgroundGeneration;
+    }
+
+    /**
+     * Returns the directory generated dispatcher classes are cached in.
+     *
+     * @return the directory generated dispatcher classes are cached in, null if disabled.
+     */
+    public Path getClassCache () {
+        return classCache;
+    }
+}
@@ -0,0 +1,80 @@
+package computersarehard.protocols;
+
+/**
+ * A snapshot of a protocol's dispatch cache statistics, obtained with {@link Protocol#getStatistics()}.
+ *
+ * Instances of this class are immutable.
+ */
+public final class ProtocolStatistics {
+    private final int cachedTypes;
+    private final long evictions;
+    private final long invalidations;
+    private final int lastInvalidations;
+    private final long footprint;
+
+    ProtocolStatistics (int cachedTypes, long evictions, long invalidations, int lastInvalidations, long footprint) {
+        this.cachedTypes = cachedTypes;
+        this.evictions = evictions;
+        this.invalidations = invalidations;
+        this.lastInvalidations = lastInvalidations;
+        this.footprint = footprint;
+    }
+
+    /**
+     * Returns the number of types with a cached resolution. Generated classes sharing a resolution (see
+     * {@link ProtocolOptions#withCanonicalization(boolean)}) count as a single type.
+     *
+     * @return the number of cached types.
+     */
+    public int getCachedTypes () {
+        return cachedTypes;
+    }
+
+    /**
+     * Returns the number of cached resolutions that were evicted to stay within the cache capacity (see
+     * {@link ProtocolOptions#withCacheCapacity(int, EvictionPolicy)}).
+     *
+     * @return the total number of evicted resolutions.
+     */
+    public long getEvictions () {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of cached resolutions that were invalidated by extending the protocol. Extending a type only
+     * invalidates the resolutions of its subtypes.
+     *
+     * @return the total number of invalidated resolutions.
+     */
+    public long getInvalidations () {
+        return invalidations;
+    }
+
+    /**
+     * Returns the number of cached resolutions that were invalidated by the most recent call to
+     * {@link Protocol#extend(Class, Object)} or {@link Protocol#extendAll(java.util.Map)}.
+     *
+     * @return the number of resolutions invalidated by the last extend.
+     */
+    public int getLastInvalidations () {
+        return lastInvalidations;
+    }
+
+    /**
+     * Returns the approximate heap size of the protocol's cached resolutions in bytes, assuming compressed references.
+     * A frozen protocol keeps its resolutions in an array indexed by a small ID per class, which takes a reference per
+     * class ID up to the largest ID it has resolved.
+     *
+     * @return the approximate size of the dispatch tables in bytes.
+     */
+    public long getFootprint () {
+        return footprint;
+    }
+
+    @Override
+    public String toString () {
+        return "ProtocolStatistics{cachedTypes=" + cachedTypes + ", evictions=" + evictions
+            + ", invalidations=" + invalidations
+            + ", lastInvalidations=" + lastInvalidations + ", footprint=" + footprint + "}";
+    }
+}
@@ -0,0 +1,1855 @@
+package computersarehard.protocols;
+
+import java.io.InputStream;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javassist.*;
+import javassist.bytecode.BootstrapMethodsAttribute;
+import javassist.bytecode.BootstrapMethodsAttribute.BootstrapMethod;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+
+/**
+ * Public API for defining protocols and extending existing types with protocol implementations.
+ *
+ * Protocols are defined by calling {@link Protocols#define(Class)} with a class that represents an interface that
+ * defines the API for the protocol. The interface must only contain methods that have at least one argument where the
+ * first argument is a reference type (not primitive nor array). The first argument to each protocol method will be used
+ * as the dispatch object. {@link #define(Class)} returns a {@link Protocol} instance which provides access to an
+ * instance of the interface that is then used when invoking the protocol's methods.
+ *
+ * Existing types are extended with protocol implementations by calling {@link Protocol#extend(Class, Object)} with
+ * arguments that describe the type being extended, the protocol being implemented, and the implementation of the
+ * protocol for the type.
+ */
+public class Protocols {
+    private static final AtomicInteger CALL_SITE_DISPATCHERS = new AtomicInteger();
+    private static final AtomicInteger SPECIALIZATIONS = new AtomicInteger();
+
+    // Protocols registered by defineIfAbsent. The task is set while the protocol is being defined.
+    private static final ClassValue<AtomicReference<FutureTask<Protocol<?>>>> REGISTERED =
+        new ClassValue<AtomicReference<FutureTask<Protocol<?>>>>() {
+            @Override
+            protected AtomicReference<FutureTask<Protocol<?>>> computeValue (Class<?> type) {
+                return new AtomicReference<>();
+            }
+        };
+
+    /**
+     * Defines a protocol using a certain API as defined by the {@link Class} instance passed as an argument.
+     *
+     * Using the passed {@link Class}, an implementation class is generated that delegates to the protocol
+     * implementations registered via {@link Protocol#extend(Class, Object)}. Callers must take care to save
+     * a reference to the returned instance and perform all implementation registrations and invocations of the protocol
+     * through it.  This method may be called an unlimited number of times per unique {@link Class} instance, however,
+     * a new instance is returend each time with no knowledge of previous instances. Use
+     * {@link #defineIfAbsent(Class)} to share a single instance per interface.
+     *
+     * @param api A {@link Class} instance representing an interface that provides the contract for the protocol. This
+     * instance _must_ represent an interface, only have methods with arguments where the first argument is a reference
+     * type.
+     * @param <T> The protocol's type.
+     *
+     * @return The {@link Protocol} registration object.
+     */
+    public static <T> Protocol<T> define (Class<T> api) {
+        return define(api, ProtocolOptions.defaults());
+    }
+
+    /**
+     * Defines a protocol like {@link #define(Class)} using the given options to generate the dispatcher.
+     *
+     * @param api A {@link Class} instance representing an interface that provides the contract for the protocol. This
+     * instance _must_ represent an interface, only have methods with arguments where the first argument is a reference
+     * type.
+     * @param options Options controlling how the protocol's dispatcher is generated.
+     * @param <T> The protocol's type.
+     *
+     * @return The {@link Protocol} registration object.
+     */
+    public static <T> Protocol<T> define (Class<T> api, ProtocolOptions options) {
+        checkNotNull(api, "api argument is required.");
+        checkNotNull(options, "options argument is required.");
+        validateProtocol(api);
+        if (options.getBackgroundGeneration() != null) {
+            return defineInBackground(api, options);
+        }
+
+        try {
+            T dispatcher = makeDispatcher(api, options);
+            ((Dispatcher) dispatcher).protocols$$configure(options);
+            return new Protocol<>(dispatcher);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Defines a protocol whose dispatcher is generated by the options' executor. The protocol starts out with an
+     * interim dispatcher: a proxy that dispatches through a plain {@link Dispatcher} holding the protocol's state. The
+     * generated dispatcher takes over that state once it is ready.
+     */
+    private static <T> Protocol<T> defineInBackground (Class<T> api, ProtocolOptions options) {
+        Dispatcher state = new Dispatcher(api);
+        state.protocols$$configure(options);
+        Interim interim = new Interim(state);
+        @SuppressWarnings("unchecked")
+        T proxy = (T) Proxy.newProxyInstance(api.getClassLoader(), new Class<?>[] {api}, interim);
+        Protocol<T> protocol = new Protocol<>(proxy);
+
+        protocol.generation = CompletableFuture.runAsync(() -> {
+            T dispatcher;
+            try {
+                dispatcher = makeDispatcher(api, options);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            ((Dispatcher) dispatcher).protocols$$configure(options);
+            state.protocols$$moveTo((Dispatcher) dispatcher);
+            // Types resolved in the meantime, e.g. replayed from a type profile, stay resolved.
+            ((Dispatcher) dispatcher).protocols$$warmUp(state.protocols$$getResolvedTypes());
+            interim.target = dispatcher;
+            protocol.setDispatcher(dispatcher);
+        }, options.getBackgroundGeneration());
+        return protocol;
+    }
+
+    /**
+     * Returns the {@link Dispatcher} holding the state of the protocol with the given dispatcher.
+     */
+    static Dispatcher stateOf (Object dispatcher) {
+        if (dispatcher instanceof Dispatcher) {
+            return (Dispatcher) dispatcher;
+        }
+        return ((Interim) Proxy.getInvocationHandler(dispatcher)).getState();
+    }
+
+    /**
+     * Returns the protocol registered for the interface by {@link #defineIfAbsent(Class, ProtocolOptions)}.
+     *
+     * @param api The protocol's interface.
+     * @param <T> The protocol's type.
+     *
+     * @return The registered {@link Protocol}, or null if none has been registered for the interface.
+     */
+    public static <T> Protocol<T> get (Class<T> api) {
+        checkNotNull(api, "api argument is required.");
+        FutureTask<Protocol<?>> task = REGISTERED.get(api).get();
+        if (task == null) {
+            return null;
+        }
+        try {
+            return awaitRegistration(task);
+        } catch (RuntimeException | Error e) {
+            // Failed registrations are not registered
+            return null;
+        }
+    }
+
+    /**
+     * Defines a protocol with default options and registers it, unless a protocol has already been registered for
+     * the interface. See {@link #defineIfAbsent(Class, ProtocolOptions)}.
+     *
+     * @param api The protocol's interface, see {@link #define(Class)}.
+     * @param <T> The protocol's type.
+     *
+     * @return The {@link Protocol} registered for the interface.
+     */
+    public static <T> Protocol<T> defineIfAbsent (Class<T> api) {
+        return defineIfAbsent(api, ProtocolOptions.defaults());
+    }
+
+    /**
+     * Returns the protocol registered for the interface, defining and registering it with the given options first if
+     * there is none. Every caller gets the same {@link Protocol} instance for an interface, so libraries can share a
+     * protocol without passing it around. Protocols are registered per {@link Class} instance, i.e. per interface and
+     * class loader, and do not keep the class loader from being unloaded.
+     *
+     * If several threads register the same interface at the same time, the protocol is defined once and the other
+     * threads wait for it. The options are only used by the call that defines the protocol.
+     *
+     * @param api The protocol's interface, see {@link #define(Class)}.
+     * @param options Options controlling how the protocol's dispatcher is generated, if it is defined.
+     * @param <T> The protocol's type.
+     *
+     * @return The {@link Protocol} registered for the interface.
+     */
+    public static <T> Protocol<T> defineIfAbsent (Class<T> api, ProtocolOptions options) {
+        checkNotNull(api, "api argument is required.");
+        checkNotNull(options, "options argument is required.");
+        AtomicReference<FutureTask<Protocol<?>>> registered = REGISTERED.get(api);
+        while (true) {
+            FutureTask<Protocol<?>> task = registered.get();
+            if (task == null) {
+                task = new FutureTask<>(() -> define(api, options));
+                if (!registered.compareAndSet(null, task)) {
+                    continue;
+                }
+                task.run();
+            }
+            try {
+                return awaitRegistration(task);
+            } catch (RuntimeException | Error e) {
+                // Let the next call try again
+                registered.compareAndSet(task, null);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Defines and registers the protocols of all given interfaces like {@link #defineIfAbsent(Class,
+     * ProtocolOptions)}, in parallel. Code generation for different interfaces is independent, so defining a batch of
+     * protocols at startup takes a fraction of defining them one after another.
+     *
+     * @param apis The protocols' interfaces, see {@link #define(Class)}.
+     * @param options Options controlling how the protocols' dispatchers are generated.
+     *
+     * @return The {@link Protocol} registered for each interface, in the order of the interfaces.
+     */
+    public static List<Protocol<?>> defineAll (Collection<Class<?>> apis, ProtocolOptions options) {
+        checkNotNull(apis, "apis argument is required.");
+        checkNotNull(options, "options argument is required.");
+        return apis.parallelStream()
+            .<Protocol<?>>map(api -> defineIfAbsent(api, options))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Defines a protocol for each of the given interfaces like {@link #define(Class, ProtocolOptions)} and bundles
+     * them, see {@link ProtocolBundle}.
+     *
+     * @param options Options controlling how the protocols' dispatchers are generated. Background generation and
+     * direct implementations are not supported. The cache capacity also applies to the bundle's cache.
+     * @param apis The protocols' interfaces, see {@link #define(Class)}.
+     *
+     * @return The {@link ProtocolBundle} holding the new protocols.
+     */
+    public static ProtocolBundle bundle (ProtocolOptions options, Class<?>... apis) {
+        checkNotNull(options, "options argument is required.");
+        checkNotNull(apis, "apis argument is required.");
+        if (options.getBackgroundGeneration() != null || options.isDirectImplementations()) {
+            throw new IllegalArgumentException("Protocol bundles do not support background generation or direct"
+                + " implementations.");
+        }
+        Protocol<?>[] protocols = new Protocol<?>[apis.length];
+        for (int i = 0; i < apis.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (apis[j] == apis[i]) {
+                    throw new IllegalArgumentException("Protocol " + apis[i].getName() + " is bundled twice.");
+                }
+            }
+            protocols[i] = define(apis[i], options);
+        }
+        return new ProtocolBundle(apis.clone(), protocols, options);
+    }
+
+    /**
+     * Defines and bundles protocols with the default options, see {@link #bundle(ProtocolOptions, Class[])}.
+     *
+     * @param apis The protocols' interfaces, see {@link #define(Class)}.
+     *
+     * @return The {@link ProtocolBundle} holding the new protocols.
+     */
+    public static ProtocolBundle bundle (Class<?>... apis) {
+        return bundle(ProtocolOptions.defaults(), apis);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Protocol<T> awaitRegistration (FutureTask<Protocol<?>> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return (Protocol<T>) task.get();
+                } catch (InterruptedException e) {
+                    // The protocol is being defined by another thread, which is not interrupted.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw (RuntimeException) e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static void validateProtocol (Class<?> api) {
+        // Must be an interface
+        if (!api.isInterface()) {
+            throw new IllegalArgumentException("Protocol class must be an interface.");
+        }
+        // All methods must take at least one argument
+        for (Method m : api.getMethods()) {
+            if ((m.getModifiers() & Modifier.STATIC) > 0) {
+                continue;
+            }
+            // Must have at least one parameter
+            if (m.getParameterCount() == 0) {
+                throw new IllegalArgumentException("Protocol method " + m.getName() + " does not take any parameters.");
+            }
+            // First parameter must be a reference type
+            Class<?> firstParamType = m.getParameterTypes()[0];
+            if (firstParamType.isPrimitive() || firstParamType.isArray()) {
+                throw new IllegalArgumentException("Protocol method " + m.getName() + " does not take reference type as"
+                    + " first argument.");
+            }
+        }
+    }
+
+    private static <T> T makeDispatcher (Class<T> api, ProtocolOptions options) throws Exception {
+        if (options.getEngine() == DispatchEngine.INVOKEDYNAMIC) {
+            return makeCallSiteDispatcher(api, options.getCodeGenerator());
+        }
+
+        // Create a new class with a name similar to the protocol's name (or find a previously created class). Options
+        // that change the generated code are part of the name.
+        int inlineCacheSize = options.getInlineCacheSize();
+        boolean specialize = options.getSpecializationWarmup() > 0;
+        boolean direct = options.isDirectImplementations();
+        final String className = api.getName() + "$$Protocol"
+            + (inlineCacheSize > 0 ? "$$Pic" + inlineCacheSize : "")
+            + (specialize ? "$$Spec" : "")
+            + (direct ? "$$Direct" : "");
+        CodeGenerator generator = options.getCodeGenerator();
+        Path cacheDirectory = options.getClassCache();
+        Class<?> generatedClass = GeneratedClasses.shared(api, className, () -> {
+            if (cacheDirectory == null) {
+                return generator == CodeGenerator.BYTECODE
+                    ? BytecodeGenerator.makeDispatcherClass(api, className, inlineCacheSize, specialize, direct)
+                    : makeJavassistDispatcherClass(api, className, inlineCacheSize, specialize, direct)
+                        .toClass(api.getClassLoader(), api.getProtectionDomain());
+            }
+            // Cached classes are kept as bytes and defined like the classes of the bytecode backend.
+            ClassCache cache = new ClassCache(cacheDirectory, generator);
+            return cache.define(api, className, () -> generator == CodeGenerator.BYTECODE
+                ? BytecodeGenerator.writeDispatcherClass(api, className, inlineCacheSize, specialize, direct)
+                : makeJavassistDispatcherClass(api, className, inlineCacheSize, specialize, direct).toBytecode());
+        });
+        T dispatcher = newDispatcher(generatedClass, api);
+
+        if (specialize) {
+            ((Dispatcher) dispatcher).protocols$$enableSpecialization(
+                options.getSpecializationWarmup(),
+                options.getSpecializationTypes(),
+                options.getSpecializationExecutor()
+            );
+        }
+        return dispatcher;
+    }
+
+    private static CtClass makeJavassistDispatcherClass (Class<?> api, String className, int inlineCacheSize,
+        boolean specialize, boolean direct) throws Exception {
+        // Generate a proxy class for the given interface. The proxy will delegate all method invocations to the
+        // matching protocol implementation for the first argument's type.
+        ClassPool cp = newClassPool(api);
+        CtClass apiClass = cp.get(api.getName());
+        CtClass proxyClass = makeDispatcherClass(cp, className, Dispatcher.class, apiClass);
+
+        // Add an implementation for every method in the protocol interface.
+        List<CtMethod> methods = getProtocolMethods(apiClass);
+        for (int i = 0; i < methods.size(); i++) {
+            CtMethod m = methods.get(i);
+            CtMethod copy = new CtMethod(m, proxyClass, null);
+            String invocation = "((" + api.getName() + ") %s)." + m.getName() + "($$)";
+            String body;
+            if (inlineCacheSize > 0) {
+                String slotPrefix = "protocols$$ic" + i + "$";
+                body = makeInlineCacheBody(proxyClass, slotPrefix, inlineCacheSize, invocation);
+            } else {
+                // The body of the method looks up the implementation based on the type of the first argument and
+                // then delegates the method call to that implementation.
+                body = "{return " + String.format(invocation, "protocols$$getImplementation($1)") + ";}";
+            }
+            if (specialize) {
+                // Once profiling has produced a specialized dispatcher every call is delegated to it.
+                body = "{Object specialization = protocols$$getSpecialization();"
+                    + "if (specialization != null) {return " + String.format(invocation, "specialization") + ";}"
+                    + body + "}";
+            }
+            if (direct) {
+                // Receivers that implement the protocol's interface are their own implementation.
+                body = "{if ($1 instanceof " + api.getName() + ") {return " + String.format(invocation, "$1")
+                    + ";}" + body + "}";
+            }
+            copy.setBody(body);
+            proxyClass.addMethod(copy);
+        }
+
+        if (inlineCacheSize > 0) {
+            // Clear every method's cache when the protocol is extended.
+            StringBuilder reset = new StringBuilder("{");
+            for (int i = 0; i < methods.size(); i++) {
+                for (int slot = 0; slot < inlineCacheSize; slot++) {
+                    reset.append("protocols$$ic").append(i).append('$').append(slot).append(" = null;");
+                }
+            }
+            proxyClass.addMethod(CtNewMethod.make(
+                "protected void protocols$$resetInlineCaches () " + reset.append('}'),
+                proxyClass
+            ));
+        }
+
+        // Create a one arg constructor that calls super.
+        proxyClass.addConstructor(CtNewConstructor.make(
+            new CtClass[] {cp.get(Class.class.getName())},
+            new CtClass[0],
+            proxyClass
+        ));
+
+        return proxyClass;
+    }
+
+    /**
+     * Generates a class that dispatches the given receiver classes with exact class checks. Each check invokes the
+     * implementation through its concrete class when the generated class can link against it, which lets the JIT
+     * inline the implementation without a type profile. All other receivers are dispatched through the table.
+     */
+    static Object makeSpecialization (Dispatcher dispatcher, List<Class<?>> types) throws Exception {
+        Class<?> api = dispatcher.api;
+        final String className = api.getName() + "$$Protocol$$Specialized" + SPECIALIZATIONS.incrementAndGet();
+
+        // One field per receiver class, typed with the implementation's class if it can be linked against.
+        Object[] implementations = new Object[types.size()];
+        Class<?>[] fieldTypes = new Class<?>[types.size()];
+        for (int i = 0; i < types.size(); i++) {
+            implementations[i] = dispatcher.lookup(types.get(i));
+            Class<?> implementationClass = implementations[i].getClass();
+            fieldTypes[i] = isLinkable(implementationClass, api) ? implementationClass : api;
+        }
+
+        Class<?> generatedClass = dispatcher.codeGenerator == CodeGenerator.BYTECODE
+            ? BytecodeGenerator.makeSpecializationClass(api, className, types, fieldTypes)
+            : makeJavassistSpecializationClass(api, className, types, fieldTypes);
+        return generatedClass.getConstructor(Dispatcher.class, Object[].class).newInstance(dispatcher, implementations);
+    }
+
+    private static Class<?> makeJavassistSpecializationClass (Class<?> api, String className, List<Class<?>> types,
+        Class<?>[] fieldTypes) throws Exception {
+        ClassPool cp = newClassPool(api);
+        CtClass apiClass = cp.get(api.getName());
+        CtClass specializationClass = makeDispatcherClass(cp, className, Specialization.class, apiClass);
+
+        StringBuilder constructor = new StringBuilder("{super($1, $2);");
+        for (int i = 0; i < types.size(); i++) {
+            String fieldType = fieldTypes[i].getName();
+            specializationClass.addField(CtField.make(
+                "private final " + fieldType + " protocols$$impl" + i + ";",
+                specializationClass
+            ));
+            constructor.append("protocols$$impl").append(i).append(" = (").append(fieldType).append(") $2[")
+                .append(i).append("];");
+        }
+
+        for (CtMethod m : getProtocolMethods(apiClass)) {
+            CtMethod copy = new CtMethod(m, specializationClass, null);
+            StringBuilder body = new StringBuilder("{Class type = protocols$$getDispatchType($1);");
+            for (int i = 0; i < types.size(); i++) {
+                body.append("if (type == ").append(types.get(i).getName()).append(".class) {")
+                    .append("return protocols$$impl").append(i).append('.').append(m.getName()).append("($$);")
+                    .append('}');
+            }
+            body.append("return ((").append(api.getName()).append(") protocols$$getImplementation($1)).")
+                .append(m.getName()).append("($$);}");
+            copy.setBody(body.toString());
+            specializationClass.addMethod(copy);
+        }
+
+        specializationClass.addConstructor(CtNewConstructor.make(
+            new CtClass[] {cp.get(Dispatcher.class.getName()), cp.get(Object[].class.getName())},
+            new CtClass[0],
+            constructor.append('}').toString(),
+            specializationClass
+        ));
+
+        return specializationClass.toClass(api.getClassLoader(), api.getProtectionDomain());
+    }
+
+    /**
+     * Creates a handle that implements the protocol's interface by invoking the implementation for the given type.
+     * The generated class is shared by all handles of a protocol interface. The state is the dispatcher that owns the
+     * protocol's implementations, which differs from the protocol's dispatcher while that is an interim dispatcher.
+     */
+    static Object makeBinding (Dispatcher state, Object dispatcher, Class<?> type) throws Exception {
+        Class<?> api = state.api;
+        if (state.protocols$$isDirect() && api.isAssignableFrom(type)) {
+            // The dispatcher invokes such arguments directly, ahead of any registered implementation.
+            return dispatcher;
+        }
+        // Fails for types without an implementation before anything is generated.
+        InlineCacheEntry entry = state.protocols$$resolve(type);
+
+        final String className = api.getName() + "$$Protocol$$Bound";
+        CodeGenerator generator = state.codeGenerator;
+        Class<?> generatedClass = GeneratedClasses.shared(api, className, () -> generator == CodeGenerator.BYTECODE
+            ? BytecodeGenerator.makeBindingClass(api, className)
+            : makeJavassistBindingClass(api, className));
+        return generatedClass.getConstructor(Dispatcher.class, InlineCacheEntry.class).newInstance(state, entry);
+    }
+
+    private static Class<?> makeJavassistBindingClass (Class<?> api, String className) throws Exception {
+        ClassPool cp = newClassPool(api);
+        CtClass apiClass = cp.get(api.getName());
+        CtClass bindingClass = makeDispatcherClass(cp, className, Binding.class, apiClass);
+
+        // Every method invokes the bound implementation, the dispatch argument is not looked at.
+        for (CtMethod m : getProtocolMethods(apiClass)) {
+            CtMethod copy = new CtMethod(m, bindingClass, null);
+            copy.setBody("{return ((" + api.getName() + ") protocols$$getImplementation())." + m.getName()
+                + "($$);}");
+            bindingClass.addMethod(copy);
+        }
+
+        bindingClass.addConstructor(CtNewConstructor.make(
+            new CtClass[] {cp.get(Dispatcher.class.getName()), cp.get(InlineCacheEntry.class.getName())},
+            new CtClass[0],
+            bindingClass
+        ));
+        return bindingClass.toClass(api.getClassLoader(), api.getProtectionDomain());
+    }
+
+    /**
+     * Returns whether code generated into the protocol's package and class loader can refer to the class by name.
+     */
+    static boolean isLinkable (Class<?> type, Class<?> api) {
+        if (type.isArray() || type.isPrimitive() || type.isSynthetic()) {
+            return false;
+        }
+        try {
+            // Rules out hidden classes (e.g. lambdas) and classes from unrelated class loaders.
+            if (Class.forName(type.getName(), false, api.getClassLoader()) != type) {
+                return false;
+            }
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+        if ((type.getModifiers() & (Modifier.PUBLIC | Modifier.PROTECTED)) != 0) {
+            return true;
+        }
+        return type.getClassLoader() == api.getClassLoader() && getPackageName(type).equals(getPackageName(api));
+    }
+
+    /**
+     * Returns whether the class lives at least as long as the protocol's interface: it is not a hidden class and its
+     * class loader is the interface's class loader or one of its ancestors.
+     */
+    static boolean isLoadedWith (Class<?> type, Class<?> api) {
+        if (type.getName().indexOf('/') >= 0) {
+            // Hidden classes can be unloaded on their own
+            return false;
+        }
+        ClassLoader loader = type.getClassLoader();
+        if (loader == null) {
+            return true;
+        }
+        for (ClassLoader l = api.getClassLoader(); l != null; l = l.getParent()) {
+            if (l == loader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getPackageName (Class<?> type) {
+        String name = type.getName();
+        int index = name.lastIndexOf('.');
+        return index < 0 ? "" : name.substring(0, index);
+    }
+
+    /**
+     * Generates the body of a protocol method that checks a polymorphic inline cache of its own before falling back
+     * to the dispatch table. Each slot holds an immutable entry that pairs a receiver class with its implementation.
+     * Slots are filled in order as the method sees new receiver classes. Once every slot is taken the method is
+     * megamorphic and misses go to the dispatch table without touching the cache.
+     */
+    private static String makeInlineCacheBody (CtClass proxyClass, String slotPrefix, int slots, String invocation)
+        throws CannotCompileException {
+        String entryType = InlineCacheEntry.class.getName();
+        StringBuilder body = new StringBuilder("{")
+            .append("Class type = protocols$$getDispatchType($1);")
+            .append(entryType).append(" entry;");
+
+        for (int slot = 0; slot < slots; slot++) {
+            String field = slotPrefix + slot;
+            proxyClass.addField(CtField.make("private volatile " + entryType + " " + field + ";", proxyClass));
+            body.append("entry = ").append(field).append(';')
+                .append("if (entry != null && entry.type == type) {")
+                .append("return ").append(String.format(invocation, "entry.implementation")).append(';')
+                .append('}');
+        }
+
+        // Fill the first free slot. An entry resolved before the protocol was extended is cleared again because the
+        // reset may have run before the slot was written.
+        body.append("entry = protocols$$newInlineCacheEntry($1);");
+        for (int slot = 0; slot < slots; slot++) {
+            String field = slotPrefix + slot;
+            body.append(slot > 0 ? "else if (" : "if (").append(field).append(" == null) {")
+                .append(field).append(" = entry;")
+                .append("if (!protocols$$isCurrent(entry)) {").append(field).append(" = null;}")
+                .append('}');
+        }
+        return body.append("return ").append(String.format(invocation, "entry.implementation")).append(";}")
+            .toString();
+    }
+
+    private static <T> T makeCallSiteDispatcher (Class<T> api, CodeGenerator generator) throws Exception {
+        // Call sites are linked once per class, so each protocol instance needs a class of its own.
+        final String className = api.getName() + "$$Protocol$$Indy" + CALL_SITE_DISPATCHERS.incrementAndGet();
+        if (generator == CodeGenerator.BYTECODE) {
+            return newDispatcher(BytecodeGenerator.makeCallSiteDispatcherClass(api, className), api);
+        }
+
+        ClassPool cp = newClassPool(api);
+        CtClass apiClass = cp.get(api.getName());
+        CtClass proxyClass = makeDispatcherClass(cp, className, CallSiteDispatcher.class, apiClass);
+
+        ClassFile classFile = proxyClass.getClassFile();
+        // invokedynamic requires a Java 7 class file.
+        if (classFile.getMajorVersion() < ClassFile.JAVA_7) {
+            classFile.setMajorVersion(ClassFile.JAVA_7);
+        }
+
+        // Every protocol method shares a single bootstrap method. The call site's name and type identify the protocol
+        // method being linked.
+        ConstPool constPool = classFile.getConstPool();
+        int bootstrap = constPool.addMethodHandleInfo(ConstPool.REF_invokeStatic, constPool.addMethodrefInfo(
+            constPool.addClassInfo(CallSiteDispatcher.class.getName()),
+            "protocols$$bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)"
+                + "Ljava/lang/invoke/CallSite;"
+        ));
+        classFile.addAttribute(new BootstrapMethodsAttribute(constPool, new BootstrapMethod[] {
+            new BootstrapMethod(bootstrap, new int[0])
+        }));
+
+        // The bootstrap method finds the dispatcher through this field.
+        proxyClass.addField(CtField.make("public static Object protocols$$self;", proxyClass));
+
+        // Add an implementation for every method in the protocol interface. The body passes all arguments to the
+        // method's call site.
+        for (CtMethod m : getProtocolMethods(apiClass)) {
+            CtMethod copy = new CtMethod(m, proxyClass, null);
+            CtClass[] parameterTypes = m.getParameterTypes();
+
+            Bytecode code = new Bytecode(constPool);
+            int stack = code.addLoadParameters(parameterTypes, 1);
+            code.addInvokedynamic(0, m.getName(), m.getSignature());
+            code.addReturn(m.getReturnType());
+            code.setMaxLocals(false, parameterTypes, 0);
+            code.setMaxStack(Math.max(stack, 2));
+
+            copy.getMethodInfo().setCodeAttribute(code.toCodeAttribute());
+            copy.setModifiers(copy.getModifiers() & ~Modifier.ABSTRACT);
+            proxyClass.addMethod(copy);
+        }
+
+        // Create a one arg constructor that calls super and publishes the instance to the bootstrap method.
+        proxyClass.addConstructor(CtNewConstructor.make(
+            new CtClass[] {cp.get(Class.class.getName())},
+            new CtClass[0],
+            "{ super($1); protocols$$self = this; }",
+            proxyClass
+        ));
+
+        return newDispatcher(proxyClass.toClass(api.getClassLoader(), api.getProtectionDomain()), api);
+    }
+
+    /**
+     * Returns a new class pool for generating a class in the protocol's class loader. All pools share a parent that
+     * holds the JDK's and the library's classes, so these are parsed once and not for every generated class. The
+     * parent never holds application classes: they are specific to a class loader and would never be released.
+     */
+    private static ClassPool newClassPool (Class<?> api) {
+        ClassPool cp = new ClassPool(LibraryClassPath.POOL);
+        cp.appendClassPath(new LoaderClassPath(api.getClassLoader()));
+        return cp;
+    }
+
+    private static final class LibraryClassPath implements ClassPath {
+        // Created on first use: classes loaded from a class cache are defined without Javassist.
+        static final ClassPool POOL = new ClassPool(null);
+
+        static {
+            POOL.appendClassPath(new LibraryClassPath());
+        }
+
+        private final ClassPath classPath = new ClassClassPath(Protocols.class);
+
+        @Override
+        public InputStream openClassfile (String className) throws NotFoundException {
+            return isLibraryClass(className) ? classPath.openClassfile(className) : null;
+        }
+
+        @Override
+        public URL find (String className) {
+            return isLibraryClass(className) ? classPath.find(className) : null;
+        }
+
+        @Override
+        public void close () {
+        }
+
+        private static boolean isLibraryClass (String className) {
+            // Generated classes are named after the protocol's interface followed by $$
+            return className.startsWith("java.")
+                || className.startsWith(Protocols.class.getName() + "$") && !className.contains("$$");
+        }
+    }
+
+    private static CtClass makeDispatcherClass (ClassPool cp, String className, Class<?> superclass, CtClass apiClass)
+        throws NotFoundException, CannotCompileException {
+        CtClass proxyStubClass = cp.get(superclass.getName());
+        CtClass proxyClass = cp.makeClass(className);
+
+        // Create a subclass.
+        // Proxy class extends `Dispatcher` and gains the utility methods and state management for type dispatch.
+        proxyClass.setSuperclass(proxyStubClass);
+        // Proxy class implements the protocol interface.
+        proxyClass.setInterfaces(new CtClass[] {apiClass});
+        return proxyClass;
+    }
+
+    private static List<CtMethod> getProtocolMethods (CtClass apiClass) {
+        List<CtMethod> methods = new ArrayList<>();
+        for (CtMethod m : apiClass.getDeclaredMethods()) {
+            // Static methods are not dispatched (see validateProtocol)
+            if (!Modifier.isStatic(m.getModifiers())) {
+                methods.add(m);
+            }
+        }
+        return methods;
+    }
+
+    private static <T> T newDispatcher (Class<?> generatedClass, Class<T> api) throws Exception {
+        // Create an instance
+        @SuppressWarnings("unchecked")
+        T dispatcher = (T) generatedClass.getConstructor(Class.class).newInstance(api);
+        return dispatcher;
+    }
+
+    /**
+     * A protocol definition and call dispatcher.
+     *
+     * Encapsulates the state of a protocol definition (registered implementations) and provides type dispatch
+     * utilities. A subclass of this class is generated and instantiated for each registered protocol. The methods in
+     * the protocol's interface are then stubbed out to delegate calls to the appropriate type based on the dispatch
+     * argument.
+     *
+     * This class is public so dispatchers generated at build time (see
+     * {@link computersarehard.protocols.annotation.Protocol}) can extend it from the protocol's package. It is not
+     * meant to be used directly.
+     */
+    public static class Dispatcher {
+        private static final AtomicReferenceFieldUpdater<Dispatcher, Registry> REGISTRY =
+            AtomicReferenceFieldUpdater.newUpdater(Dispatcher.class, Registry.class, "registry");
+
+        private static final Object NO_IMPLEMENTATION = new Object();
+        // Extends of more types than this evict every cached entry instead of checking each against every type.
+        private static final int MAX_TRACKED_ADDITIONS = 64;
+        // Number of registry versions whose added types are kept to revalidate cached entries.
+        private static final int HISTORY = 16;
+        // Approximate heap sizes with compressed references for the footprint in the statistics. A cache entry is a
+        // ClassValue entry, a resolution and the weak reference tracking it in a concurrent set.
+        private static final int CACHE_ENTRY_BYTES = 80;
+        private static final int ARRAY_HEADER_BYTES = 16;
+        private static final int REFERENCE_BYTES = 4;
+
+        private final Class<?> api;
+        private volatile Registry registry = new Registry(PersistentClassMap.empty(), null, 0, false,
+            new Class<?>[0][]);
+        // Plain field: only replaced before the dispatcher is published.
+        private DispatchCache<Resolution> cache = new DispatchCache<>(this::resolve, null, 0, EvictionPolicy.FIFO);
+        private final AtomicLong invalidations = new AtomicLong();
+        private volatile int lastInvalidations;
+        private volatile Object specialization;
+        // Plain fields: the profile is thread safe and a frozen table is immutable, its state is only reachable
+        // through final fields and so safe to publish through a race. Threads that read a stale value take the mutable
+        // path, resolve a type again or record a few extra calls.
+        private Profile profile;
+        private Frozen frozen;
+        private int specializationWarmup;
+        private int specializationTypes;
+        private Executor specializationExecutor;
+        private boolean stacklessFailures;
+        private boolean direct;
+        private boolean canonicalization;
+        private CodeGenerator codeGenerator = CodeGenerator.JAVASSIST;
+        // Plain field: set before the dispatcher is published.
+        private ProtocolBundle bundle;
+
+        /**
+         * Initializes an instance with the given protocol API definition.
+         *
+         * @param api A {@link Class} instance representing an interface that provides the contract for the protocol.
+         */
+        protected Dispatcher (Class<?> api) {
+            this.api = api;
+        }
+
+        void protocols$$extend (Class<?> type, Object implementation) {
+            protocols$$extendAll(Collections.singletonMap(type, implementation));
+        }
+
+        void protocols$$extendAll (Map<Class<?>, ?> additions) {
+            Registry current;
+            Registry next;
+            do {
+                current = registry;
+                if (current.successor != null) {
+                    current.successor.protocols$$extendAll(additions);
+                    return;
+                }
+                if (current.frozen) {
+                    throw new IllegalStateException("Protocol " + api.getName() + " is frozen.");
+                }
+                PersistentClassMap implementations = current.implementations;
+                for (Map.Entry<Class<?>, ?> entry : additions.entrySet()) {
+                    Class<?> type = entry.getKey();
+                    checkNotNull(type, "type argument is required.");
+                    if (implementations.containsKey(type)) {
+                        throw new IllegalStateException("Protocol  " + api.getName() + " already has an implementation"
+                            + " for type " + type.getName() + ".");
+                    }
+                    implementations = implementations.with(type, entry.getValue());
+                }
+                if (implementations == current.implementations) {
+                    return;
+                }
+                next = current.extend(implementations, current.fallback, additions.size() <= MAX_TRACKED_ADDITIONS
+                    ? additions.keySet().toArray(new Class<?>[additions.size()]) : null);
+            } while (!REGISTRY.compareAndSet(this, current, next));
+            published(next);
+        }
+
+        void protocols$$setFallback (Object implementation) {
+            checkNotNull(implementation, "implementation argument is required.");
+            Registry current;
+            Registry next;
+            do {
+                current = registry;
+                if (current.successor != null) {
+                    current.successor.protocols$$setFallback(implementation);
+                    return;
+                }
+                if (current.frozen) {
+                    throw new IllegalStateException("Protocol " + api.getName() + " is frozen.");
+                }
+                if (current.fallback != null) {
+                    throw new IllegalStateException("Protocol " + api.getName() + " already has a fallback"
+                        + " implementation.");
+                }
+                // Cached resolutions stay valid, the fallback applies to the negative ones when they are read.
+                next = current.extend(current.implementations, implementation, new Class<?>[0]);
+            } while (!REGISTRY.compareAndSet(this, current, next));
+            published(next);
+        }
+
+        private void published (Registry next) {
+            // Derived state is discarded after the new registry is published. Anything rebuilt concurrently from the
+            // old registry carries its generation and is dropped when found stale.
+            // Only cached types which are subtypes of an extended type can resolve differently now, everything else
+            // stays cached.
+            Class<?>[] added = next.history[0];
+            int evicted = cache.evict(type -> isAffected(type, added));
+            if (canonicalization && added != null) {
+                // An extended type may share the entry of its shape, which is only evicted when the shape's supertypes
+                // are extended. The other types of the shape still resolve the same and revalidate the shared entry,
+                // so the extended type must stop using it.
+                for (Class<?> type : added) {
+                    cache.remove(type);
+                }
+            }
+            invalidations.addAndGet(evicted);
+            lastInvalidations = evicted;
+            protocols$$resetInlineCaches();
+            protocols$$invalidate();
+
+            // Specializations are rebuilt from a new profile.
+            specialization = null;
+            if (specializationWarmup > 0) {
+                profile = new Profile(next.generation);
+            }
+            if (bundle != null) {
+                bundle.invalidate();
+            }
+        }
+
+        void protocols$$freeze () {
+            Registry current;
+            do {
+                current = registry;
+                if (current.successor != null) {
+                    current.successor.protocols$$freeze();
+                    return;
+                }
+                if (current.frozen) {
+                    return;
+                }
+            } while (!REGISTRY.compareAndSet(this, current,
+                new Registry(current.implementations, current.fallback, current.generation, true, current.history)));
+            // Takes over the cached resolutions. The cache is no longer read, its entries would only take up memory.
+            frozen = new Frozen(current.implementations, current.fallback).warmUp(cache.types());
+            cache.evict(type -> true);
+        }
+
+        boolean protocols$$isFrozen () {
+            return registry.frozen;
+        }
+
+        /**
+         * Hands the protocol's implementations over to the given dispatcher, which must not be published yet.
+         * Registrations through this dispatcher are forwarded to it from then on.
+         */
+        void protocols$$moveTo (Dispatcher successor) {
+            Registry current;
+            do {
+                current = registry;
+                // Takes effect before any registration can be forwarded to the successor.
+                successor.adopt(current);
+            } while (!REGISTRY.compareAndSet(this, current, current.movedTo(successor)));
+        }
+
+        private void adopt (Registry current) {
+            registry = current;
+            frozen = current.frozen ? new Frozen(current.implementations, current.fallback) : null;
+            if (specializationWarmup > 0) {
+                profile = new Profile(current.generation);
+            }
+        }
+
+        /**
+         * Returns the dispatcher that owns the protocol's state: this one, or the one it was moved to.
+         */
+        Dispatcher protocols$$getOwner () {
+            Dispatcher successor = registry.successor;
+            return successor != null ? successor : this;
+        }
+
+        void protocols$$enableSpecialization (int warmup, int types, Executor executor) {
+            // Called before the dispatcher is published.
+            specializationWarmup = warmup;
+            specializationTypes = types;
+            specializationExecutor = executor;
+            profile = new Profile(registry.generation);
+        }
+
+        void protocols$$configure (ProtocolOptions options) {
+            // Called before the dispatcher is published.
+            stacklessFailures = options.isStacklessFailures();
+            direct = options.isDirectImplementations();
+            codeGenerator = options.getCodeGenerator();
+            canonicalization = options.isCanonicalization();
+            if (options.getCacheCapacity() > 0 || canonicalization) {
+                cache = new DispatchCache<>(this::resolve, options.isCanonicalization() ? this::isCanonical : null,
+                    options.getCacheCapacity(), options.getEvictionPolicy());
+            }
+        }
+
+        void protocols$$setBundle (ProtocolBundle bundle) {
+            // Called before the dispatcher is published.
+            this.bundle = bundle;
+        }
+
+        ProtocolStatistics protocols$$getStatistics () {
+            Frozen table = frozen;
+            int cached = cache.size();
+            long footprint = (long) cached * CACHE_ENTRY_BYTES;
+            if (table != null) {
+                cached += table.size();
+                footprint += ARRAY_HEADER_BYTES + (long) table.capacity() * REFERENCE_BYTES;
+            }
+            return new ProtocolStatistics(cached, cache.evictions(), invalidations.get(), lastInvalidations, footprint);
+        }
+
+        Class<?> protocols$$getApi () {
+            return api;
+        }
+
+        /**
+         * Returns the types whose resolution is cached, see {@link TypeProfile}.
+         */
+        Set<Class<?>> protocols$$getResolvedTypes () {
+            Set<Class<?>> types = Collections.newSetFromMap(new IdentityHashMap<>());
+            types.addAll(cache.types());
+            Frozen table = frozen;
+            if (table != null) {
+                types.addAll(table.types());
+            }
+            return types;
+        }
+
+        /**
+         * Resolves the given types ahead of their first dispatch. The receiver profile used for specialization is not
+         * affected.
+         */
+        void protocols$$warmUp (Collection<Class<?>> types) {
+            Frozen table = frozen;
+            if (table != null) {
+                frozen = table.warmUp(types);
+                return;
+            }
+            for (Class<?> type : types) {
+                lookup(type);
+            }
+        }
+
+        /**
+         * Returns the specialized dispatcher generated from the receiver profile, if any.
+         *
+         * @return an instance of the protocol's interface or null if the dispatcher has not been specialized.
+         */
+        protected final Object protocols$$getSpecialization () {
+            return specialization;
+        }
+
+        /**
+         * Called after the implementation registry changed. Generated dispatchers with inline caches override this to
+         * clear them.
+         */
+        protected void protocols$$resetInlineCaches () {
+        }
+
+        /**
+         * Called after the implementation registry changed so subclasses can discard state derived from it.
+         */
+        void protocols$$invalidate () {
+        }
+
+        /**
+         * Determines the protocol implementation to delegate to for the given dispatch argument. Lookups are cached
+         * based on the argument's type. Extending a type invalidates the cached lookups of its subtypes. Precedence is:
+         *
+         * * Class
+         * * Super-classes (excluding Object)
+         * * Interfaces
+         * * Super-class' interfaces
+         * * Object
+         *
+         * @param target The dispatch object who's type will be used to perform the implementation lookup.
+         * @return The protocol implementation or null if no match was found.
+         */
+        protected final Object protocols$$getImplementation (Object target) {
+            Class<?> dispatchType = protocols$$getDispatchType(target);
+            Profile current = profile;
+            if (current != null && current.record(dispatchType, specializationWarmup)) {
+                // Stop profiling. Only the thread that completed the profile gets here.
+                profile = null;
+                Executor executor = specializationExecutor;
+                if (executor == null) {
+                    specialize(current);
+                } else {
+                    try {
+                        executor.execute(() -> specialize(current));
+                    } catch (RejectedExecutionException e) {
+                        // Specialization is an optimization. Keep dispatching through the table.
+                    }
+                }
+            }
+            // Check the cache. Misses traverse the type hierarchy and store the result.
+            Frozen table = frozen;
+            Object implementation = table != null ? table.get(dispatchType) : lookup(dispatchType);
+
+            // Error if no implementation was found for dispatchType
+            if (implementation == null) {
+                throw new NoImplementationException(api, dispatchType, !stacklessFailures);
+            }
+            return implementation;
+        }
+
+        private void specialize (Profile completed) {
+            // Hottest receivers first, followed by final registered types which an exact check covers completely.
+            List<Class<?>> types = new ArrayList<>();
+            for (Class<?> type : completed.getHottestTypes()) {
+                if (types.size() < specializationTypes && isSpecializable(type)) {
+                    types.add(type);
+                }
+            }
+            int finalTypes = 0;
+            for (Class<?> type : registry.implementations.toMap().keySet()) {
+                if (finalTypes < specializationTypes && !types.contains(type) && !type.isInterface()
+                    && Modifier.isFinal(type.getModifiers()) && isSpecializable(type)) {
+                    types.add(type);
+                    finalTypes++;
+                }
+            }
+            if (types.isEmpty()) {
+                return;
+            }
+
+            try {
+                Object generated = makeSpecialization(this, types);
+                specialization = generated;
+                // Same as inline caches: drop a specialization built from a registry that has since been extended.
+                if (registry.generation != completed.generation && specialization == generated) {
+                    specialization = null;
+                }
+            } catch (Exception e) {
+                // Specialization is an optimization. Keep dispatching through the table.
+            }
+        }
+
+        private boolean isSpecializable (Class<?> type) {
+            return isLinkable(type, api) && lookup(type) != null;
+        }
+
+        /**
+         * Returns the implementation protocol methods invoked with the given dispatch argument delegate to or null if
+         * there is none.
+         */
+        Object protocols$$implementationFor (Object target) {
+            if (protocols$$isDirect(target)) {
+                return target;
+            }
+            return lookup(protocols$$getDispatchType(target));
+        }
+
+        /**
+         * Returns whether protocol methods invoke the given dispatch argument itself.
+         */
+        boolean protocols$$isDirect (Object target) {
+            return direct && api.isInstance(target);
+        }
+
+        /**
+         * Returns whether dispatch arguments implementing the protocol's interface are invoked directly.
+         */
+        boolean protocols$$isDirect () {
+            return direct;
+        }
+
+        /**
+         * Returns whether protocol methods can be invoked with instances of the given type.
+         */
+        boolean protocols$$satisfies (Class<?> type) {
+            return direct && api.isAssignableFrom(type) || lookup(type) != null;
+        }
+
+        /**
+         * Returns the implementation for the given dispatch type, the fallback implementation if there is none or null
+         * if there is no fallback either.
+         */
+        Object lookup (Class<?> dispatchType) {
+            Frozen table = frozen;
+            if (table != null) {
+                return table.get(dispatchType);
+            }
+
+            Registry current = registry;
+            Resolution resolution = cache.get(dispatchType);
+            Object implementation;
+            if (resolution.generation != current.generation && !revalidate(resolution, dispatchType, current)) {
+                // Resolved against a registry that has since been extended with a supertype, e.g. when the
+                // resolution raced with an extend.
+                cache.remove(dispatchType);
+                implementation = findImplementation(current.implementations, dispatchType);
+            } else {
+                implementation = resolution.implementation;
+            }
+            // Types without an implementation are cached too, so they are not resolved again on every call.
+            return implementation != null ? implementation : current.fallback;
+        }
+
+        /**
+         * Checks whether a resolution made against an older registry still holds for the given registry and marks it
+         * as current if it does.
+         */
+        private static boolean revalidate (Resolution resolution, Class<?> type, Registry current) {
+            int age = current.generation - resolution.generation;
+            if (age < 0) {
+                // Resolved against a newer registry than the caller's
+                return true;
+            }
+            if (age > current.history.length) {
+                return false;
+            }
+            for (int i = 0; i < age; i++) {
+                if (isAffected(type, current.history[i])) {
+                    return false;
+                }
+            }
+            resolution.generation = current.generation;
+            return true;
+        }
+
+        /**
+         * Returns whether the resolution for the given type may change by registering the added types.
+         *
+         * @param added The added types or null if too many types were added to track them.
+         */
+        private static boolean isAffected (Class<?> type, Class<?>[] added) {
+            if (added == null) {
+                return true;
+            }
+            for (Class<?> extended : added) {
+                if (extended.isAssignableFrom(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Resolution resolve (Class<?> type) {
+            // Traverse the type hierarchy to find an implementation. Null results are cached too, the dispatcher
+            // reports the missing implementation.
+            Registry current = registry;
+            return new Resolution(findImplementation(current.implementations, type), current.generation);
+        }
+
+        /**
+         * Returns whether the type is generated at runtime and can share the cached resolution of all types with the
+         * same superclass and interfaces.
+         */
+        private boolean isCanonical (Class<?> type) {
+            if (type.isInterface() || type.isArray() || registry.implementations.containsKey(type)) {
+                return false;
+            }
+            String name = type.getName();
+            return type.isSynthetic() || Proxy.isProxyClass(type) || name.indexOf('/') >= 0 || name.contains("$$");
+        }
+
+        /**
+         * A cached resolution. Stays valid until the protocol is extended with a supertype of the resolved type.
+         */
+        private static final class Resolution extends DispatchCache.Entry {
+            final Object implementation;
+            // Plain field: the generation of the newest registry the resolution is known to hold for. Only ever
+            // refreshed to a generation it holds for, so a racing write at worst costs another revalidation.
+            int generation;
+
+            Resolution (Object implementation, int generation) {
+                this.implementation = implementation;
+                this.generation = generation;
+            }
+        }
+
+        /**
+         * An immutable version of the implementation registry. Every change publishes a new version with
+         * a compare-and-set, so readers never block and writers never wait on a lock.
+         */
+        private static final class Registry {
+            final PersistentClassMap implementations;
+            final Object fallback;
+            final int generation;
+            final boolean frozen;
+            // The types added by the most recent versions, newest first. Null for versions that added too many.
+            final Class<?>[][] history;
+            // The dispatcher that took over the protocol's state, see protocols$$moveTo. Null while this one owns it.
+            final Dispatcher successor;
+
+            Registry (PersistentClassMap implementations, Object fallback, int generation, boolean frozen,
+                Class<?>[][] history) {
+                this(implementations, fallback, generation, frozen, history, null);
+            }
+
+            private Registry (PersistentClassMap implementations, Object fallback, int generation, boolean frozen,
+                Class<?>[][] history, Dispatcher successor) {
+                this.implementations = implementations;
+                this.fallback = fallback;
+                this.generation = generation;
+                this.frozen = frozen;
+                this.history = history;
+                this.successor = successor;
+            }
+
+            Registry movedTo (Dispatcher successor) {
+                // A new generation: handles resolved against this dispatcher move on to the successor.
+                return new Registry(implementations, fallback, generation + 1, frozen, history, successor);
+            }
+
+            Registry extend (PersistentClassMap implementations, Object fallback, Class<?>[] added) {
+                Class<?>[][] next = new Class<?>[Math.min(history.length + 1, HISTORY)][];
+                next[0] = added;
+                System.arraycopy(history, 0, next, 1, next.length - 1);
+                return new Registry(implementations, fallback, generation + 1, false, next);
+            }
+        }
+
+        /**
+         * The dispatch table of a frozen protocol. Since resolutions can no longer change, every resolved type is added
+         * to an array indexed by its {@link ClassIds class ID}, which starts out with the registered types. A lookup is
+         * an array load. Tables are immutable: resolving a type publishes a copy of the table with an entry for it,
+         * concurrent misses may drop each other's entries, which only costs another resolution. Types that could be
+         * unloaded before the protocol (e.g. from a child class loader) are cached in a {@link ClassValue} instead.
+         */
+        private final class Frozen {
+            private final PersistentClassMap implementations;
+            // Never written once the table is constructed.
+            private final Object[] resolved;
+            private final Object fallback;
+            private final ClassValue<Object> unloadable;
+
+            Frozen (PersistentClassMap implementations, Object fallback) {
+                this.implementations = implementations;
+                this.fallback = fallback;
+                this.unloadable = new ClassValue<Object>() {
+                    @Override
+                    protected Object computeValue (Class<?> type) {
+                        return resolve(type);
+                    }
+                };
+                Object[] table = new Object[0];
+                for (Map.Entry<Class<?>, Object> entry : implementations.toMap().entrySet()) {
+                    table = store(table, entry.getKey(), entry.getValue());
+                }
+                this.resolved = table;
+            }
+
+            private Frozen (Frozen table, Object[] resolved) {
+                this.implementations = table.implementations;
+                this.fallback = table.fallback;
+                this.unloadable = table.unloadable;
+                this.resolved = resolved;
+            }
+
+            Object get (Class<?> dispatchType) {
+                int id = ClassIds.of(dispatchType);
+                Object[] table = resolved;
+                Object implementation = id < table.length ? table[id] : null;
+                if (implementation == null) {
+                    implementation = resolveAndCache(dispatchType);
+                }
+                return implementation != NO_IMPLEMENTATION ? implementation : null;
+            }
+
+            private Object resolveAndCache (Class<?> dispatchType) {
+                if (!isLoadedWith(dispatchType, api)) {
+                    return unloadable.get(dispatchType);
+                }
+                Object implementation = resolve(dispatchType);
+                int id = ClassIds.of(dispatchType);
+                if (id != ClassIds.NONE) {
+                    Object[] table = Arrays.copyOf(resolved, Math.max(id + 1, resolved.length));
+                    table[id] = implementation;
+                    frozen = new Frozen(this, table);
+                }
+                return implementation;
+            }
+
+            /**
+             * Returns a table with entries for the given types as well.
+             */
+            Frozen warmUp (Collection<Class<?>> types) {
+                Object[] table = resolved.clone();
+                for (Class<?> type : types) {
+                    if (!isLoadedWith(type, api)) {
+                        unloadable.get(type);
+                    } else {
+                        table = store(table, type, resolve(type));
+                    }
+                }
+                return new Frozen(this, table);
+            }
+
+            /**
+             * Returns the types with an entry in the table.
+             */
+            List<Class<?>> types () {
+                Object[] table = resolved;
+                List<Class<?>> types = new ArrayList<>();
+                for (int id = 0; id < table.length; id++) {
+                    Class<?> type = table[id] != null ? ClassIds.get(id) : null;
+                    if (type != null) {
+                        types.add(type);
+                    }
+                }
+                return types;
+            }
+
+            int size () {
+                int size = 0;
+                for (Object entry : resolved) {
+                    if (entry != null) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+
+            int capacity () {
+                return resolved.length;
+            }
+
+            /**
+             * Stores an entry in the given table, which must not be published yet, or a copy with room for it and
+             * returns the table holding it.
+             */
+            private Object[] store (Object[] table, Class<?> type, Object implementation) {
+                int id = ClassIds.of(type);
+                if (id == ClassIds.NONE) {
+                    return table;
+                }
+                if (id >= table.length) {
+                    // Grows by half, so filling the table in ID order copies each entry a constant number of times.
+                    table = Arrays.copyOf(table, Math.max(id + 1, table.length + (table.length >> 1)));
+                }
+                table[id] = implementation;
+                return table;
+            }
+
+            private Object resolve (Class<?> dispatchType) {
+                // Types without an implementation are cached too, as a marker since tables have no null values.
+                Object implementation = findImplementation(implementations, dispatchType);
+                if (implementation == null) {
+                    implementation = fallback;
+                }
+                return implementation != null ? implementation : NO_IMPLEMENTATION;
+            }
+        }
+
+        /**
+         * Returns the type used to look up the implementation for a dispatch argument.
+         *
+         * @param target The dispatch object.
+         * @return The type of the dispatch object or {@link Void} for null.
+         */
+        protected final Class<?> protocols$$getDispatchType (Object target) {
+            // use Void in place of null
+            return target == null ? Void.class : target.getClass();
+        }
+
+        /**
+         * Resolves the implementation for the dispatch argument into an entry for an inline cache.
+         *
+         * @param target The dispatch object who's type will be used to perform the implementation lookup.
+         * @return The inline cache entry.
+         */
+        protected final InlineCacheEntry protocols$$newInlineCacheEntry (Object target) {
+            // Read the generation first so an extend racing with the lookup makes the entry stale.
+            int current = registry.generation;
+            Object implementation = protocols$$getImplementation(target);
+            return new InlineCacheEntry(protocols$$getDispatchType(target), implementation, current);
+        }
+
+        /**
+         * Resolves the implementation for the given type into an entry that can be checked with
+         * {@link #protocols$$isCurrent(InlineCacheEntry)}.
+         */
+        final InlineCacheEntry protocols$$resolve (Class<?> type) {
+            // Read the generation first so an extend racing with the lookup makes the entry stale.
+            int current = registry.generation;
+            Object implementation = lookup(type);
+            if (implementation == null) {
+                throw new NoImplementationException(api, type, !stacklessFailures);
+            }
+            return new InlineCacheEntry(type, implementation, current);
+        }
+
+        /**
+         * Returns whether the inline cache entry was resolved against the current implementation registry.
+         *
+         * @param entry The inline cache entry.
+         * @return true if the protocol has not been extended since the entry was resolved.
+         */
+        protected final boolean protocols$$isCurrent (InlineCacheEntry entry) {
+            return entry.generation == registry.generation;
+        }
+
+        private static Object findImplementation (PersistentClassMap implementations, Class<?> dispatchClass) {
+            // The type, its super-classes (minus Object), its interfaces, its super-classes' interfaces and Object.
+            for (Class<?> type : TypeHierarchy.of(dispatchClass)) {
+                Object implementation = implementations.get(type);
+                if (implementation != null) {
+                    return implementation;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Handles the calls of a protocol's interim dispatcher, see {@link ProtocolOptions#withBackgroundGeneration}. Calls
+     * are dispatched through the protocol's state until the generated dispatcher is ready and forwarded to it after.
+     */
+    private static final class Interim implements InvocationHandler {
+        private final Dispatcher state;
+        private volatile Object target;
+
+        Interim (Dispatcher state) {
+            this.state = state;
+        }
+
+        Dispatcher getState () {
+            return state.protocols$$getOwner();
+        }
+
+        @Override
+        public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return state.api.getName() + "$$Interim@" + Integer.toHexString(System.identityHashCode(proxy));
+                }
+            }
+
+            Object implementation = target;
+            if (implementation == null) {
+                Dispatcher owner = getState();
+                implementation = owner.protocols$$isDirect(args[0])
+                    ? args[0]
+                    : owner.protocols$$getImplementation(args[0]);
+            }
+            try {
+                try {
+                    return method.invoke(implementation, args);
+                } catch (IllegalAccessException e) {
+                    // Interfaces that are not public
+                    method.setAccessible(true);
+                    return method.invoke(implementation, args);
+                }
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Base class of specialized dispatchers generated from a receiver profile. Receivers without an exact class check
+     * are dispatched through the table of the dispatcher that was specialized.
+     */
+    protected abstract static class Specialization {
+        private final Dispatcher dispatcher;
+
+        /**
+         * Initializes an instance that falls back to the given dispatcher.
+         *
+         * @param dispatcher The dispatcher that was specialized.
+         * @param implementations The implementations for the specialized receiver classes, in order.
+         */
+        protected Specialization (Dispatcher dispatcher, Object[] implementations) {
+            this.dispatcher = dispatcher;
+        }
+
+        /**
+         * Returns the type used to look up the implementation for a dispatch argument.
+         *
+         * @param target The dispatch object.
+         * @return The type of the dispatch object or {@link Void} for null.
+         */
+        protected final Class<?> protocols$$getDispatchType (Object target) {
+            return dispatcher.protocols$$getDispatchType(target);
+        }
+
+        /**
+         * Looks up the implementation for a receiver class that was not specialized.
+         *
+         * @param target The dispatch object who's type will be used to perform the implementation lookup.
+         * @return The protocol implementation.
+         */
+        protected final Object protocols$$getImplementation (Object target) {
+            return dispatcher.protocols$$getImplementation(target);
+        }
+    }
+
+    /**
+     * Base class of handles bound to the implementation for a single type (see {@link Protocol#bind(Class)}). The
+     * implementation is resolved again after the protocol has been extended.
+     */
+    protected abstract static class Binding {
+        // Plain field: replaced by the dispatcher the protocol's state was moved to. Threads reading a stale value
+        // resolve the implementation again.
+        private Dispatcher dispatcher;
+        private final Class<?> type;
+        private volatile InlineCacheEntry entry;
+
+        /**
+         * Initializes an instance bound to the implementation for the given type.
+         *
+         * @param dispatcher The dispatcher of the protocol.
+         * @param entry The bound type and its current implementation.
+         */
+        protected Binding (Dispatcher dispatcher, InlineCacheEntry entry) {
+            this.dispatcher = dispatcher;
+            this.type = entry.type;
+            this.entry = entry;
+        }
+
+        /**
+         * Returns the implementation for the bound type.
+         *
+         * @return The protocol implementation.
+         */
+        protected final Object protocols$$getImplementation () {
+            InlineCacheEntry current = entry;
+            if (!dispatcher.protocols$$isCurrent(current)) {
+                Dispatcher owner = dispatcher.protocols$$getOwner();
+                current = owner.protocols$$resolve(type);
+                dispatcher = owner;
+                entry = current;
+            }
+            return current.implementation;
+        }
+    }
+
+    /**
+     * Counts the receiver classes a dispatcher looks up during its warm-up window.
+     */
+    private static final class Profile {
+        final int generation;
+        private final AtomicLong calls = new AtomicLong();
+        private final ConcurrentHashMap<Class<?>, LongAdder> counts = new ConcurrentHashMap<>();
+
+        Profile (int generation) {
+            this.generation = generation;
+        }
+
+        /**
+         * Records a lookup and returns true for exactly one call: the one that completes the warm-up window.
+         */
+        boolean record (Class<?> type, int warmup) {
+            counts.computeIfAbsent(type, t -> new LongAdder()).increment();
+            return calls.incrementAndGet() == warmup;
+        }
+
+        List<Class<?>> getHottestTypes () {
+            List<Map.Entry<Class<?>, LongAdder>> entries = new ArrayList<>(counts.entrySet());
+            entries.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+            List<Class<?>> types = new ArrayList<>();
+            for (Map.Entry<Class<?>, LongAdder> entry : entries) {
+                types.add(entry.getKey());
+            }
+            return types;
+        }
+    }
+
+    /**
+     * An entry of a generated method's inline cache: a receiver class and the implementation it resolved to.
+     */
+    protected static final class InlineCacheEntry {
+        /**
+         * The receiver class.
+         */
+        public final Class<?> type;
+        /**
+         * The implementation for the receiver class.
+         */
+        public final Object implementation;
+        final int generation;
+
+        InlineCacheEntry (Class<?> type, Object implementation, int generation) {
+            this.type = type;
+            this.implementation = implementation;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A dispatcher whose protocol methods are linked through invokedynamic call sites.
+     *
+     * Each call site starts out unlinked. The first call for a receiver class resolves the implementation through the
+     * dispatch table and prepends an exact class check that invokes the implementation directly, up to
+     * {@link #MAX_GUARDS} receiver classes. Beyond that the call site is megamorphic and dispatches through the table.
+     * All call sites are guarded by a {@link SwitchPoint} that is invalidated whenever the protocol is extended, which
+     * returns them to the unlinked state.
+     */
+    protected static class CallSiteDispatcher extends Dispatcher {
+        private static final int MAX_GUARDS = 8;
+        private static final MethodHandle IS_DISPATCH_TYPE;
+        private static final MethodHandle GET_IMPLEMENTATION;
+        private static final MethodHandle GET_IMPLEMENTATION_OR_SELF;
+        private static final MethodHandle RELINK;
+        private static final AtomicReferenceFieldUpdater<CallSiteDispatcher, SwitchPoint> SWITCH_POINT =
+            AtomicReferenceFieldUpdater.newUpdater(CallSiteDispatcher.class, SwitchPoint.class, "switchPoint");
+
+        static {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                IS_DISPATCH_TYPE = lookup.findStatic(CallSiteDispatcher.class, "isDispatchType",
+                    MethodType.methodType(boolean.class, Class.class, Object.class));
+                GET_IMPLEMENTATION = lookup.findVirtual(Dispatcher.class, "protocols$$getImplementation",
+                    MethodType.methodType(Object.class, Object.class));
+                GET_IMPLEMENTATION_OR_SELF = lookup.findVirtual(CallSiteDispatcher.class, "getImplementationOrSelf",
+                    MethodType.methodType(Object.class, Object.class));
+                RELINK = lookup.findVirtual(Linker.class, "relink",
+                    MethodType.methodType(Object.class, Object[].class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private volatile SwitchPoint switchPoint = new SwitchPoint();
+
+        /**
+         * Initializes an instance with the given protocol API definition.
+         *
+         * @param api A {@link Class} instance representing an interface that provides the contract for the protocol.
+         */
+        protected CallSiteDispatcher (Class<?> api) {
+            super(api);
+        }
+
+        @Override
+        void protocols$$invalidate () {
+            // Extends run concurrently, each switch point must be replaced and invalidated exactly once.
+            SwitchPoint invalidated = SWITCH_POINT.getAndSet(this, new SwitchPoint());
+            SwitchPoint.invalidateAll(new SwitchPoint[] {invalidated});
+        }
+
+        private Object getImplementationOrSelf (Object target) {
+            return protocols$$isDirect(target) ? target : protocols$$getImplementation(target);
+        }
+
+        /**
+         * Bootstrap method for the call sites of generated dispatchers.
+         *
+         * @param lookup The lookup of the generated dispatcher class.
+         * @param name The name of the protocol method.
+         * @param type The type of the protocol method without the receiver.
+         * @return The call site for the protocol method.
+         * @throws Throwable if the protocol method cannot be found.
+         */
+        public static CallSite protocols$$bootstrap (MethodHandles.Lookup lookup, String name, MethodType type)
+            throws Throwable {
+            CallSiteDispatcher dispatcher = (CallSiteDispatcher) lookup
+                .findStaticGetter(lookup.lookupClass(), "protocols$$self", Object.class)
+                .invoke();
+            Class<?> api = ((Dispatcher) dispatcher).api;
+            return new Linker(dispatcher, lookup.findVirtual(api, name, type)).site;
+        }
+
+        private static boolean isDispatchType (Class<?> type, Object target) {
+            // use Void in place of null
+            return target == null ? type == Void.class : target.getClass() == type;
+        }
+
+        /**
+         * Links a single call site.
+         */
+        private static final class Linker {
+            private final CallSiteDispatcher dispatcher;
+            private final MethodHandle method;
+            private final MethodHandle relink;
+            private final MutableCallSite site;
+            private volatile Guards guards;
+
+            Linker (CallSiteDispatcher dispatcher, MethodHandle method) {
+                MethodType type = method.type().dropParameterTypes(0, 1);
+                this.dispatcher = dispatcher;
+                this.method = method;
+                this.relink = RELINK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type);
+                this.site = new MutableCallSite(relink);
+            }
+
+            Object relink (Object[] args) throws Throwable {
+                // Read the switch point before resolving so an extend racing with this call invalidates the result.
+                SwitchPoint switchPoint = dispatcher.switchPoint;
+                Object target = args[0];
+                MethodType type = site.type();
+                MethodHandle bound;
+                if (dispatcher.protocols$$isDirect(target)) {
+                    // Receivers that implement the protocol's interface are invoked with themselves as the receiver.
+                    int[] reorder = new int[type.parameterCount() + 1];
+                    for (int i = 1; i < reorder.length; i++) {
+                        reorder[i] = i - 1;
+                    }
+                    bound = MethodHandles.permuteArguments(
+                        method.asType(method.type().changeParameterType(0, type.parameterType(0))),
+                        type,
+                        reorder
+                    );
+                } else {
+                    bound = method.bindTo(dispatcher.protocols$$getImplementation(target));
+                }
+
+                // Guards linked under an invalidated switch point are discarded. Concurrent relinks may drop each
+                // other's guards which only costs another relink.
+                Guards current = guards;
+                if (current == null || current.switchPoint != switchPoint) {
+                    current = new Guards(switchPoint, relink, 0);
+                }
+
+                Guards next;
+                if (current.count < MAX_GUARDS) {
+                    Class<?> dispatchType = target == null ? Void.class : target.getClass();
+                    MethodHandle test = MethodHandles.dropArguments(
+                        IS_DISPATCH_TYPE.bindTo(dispatchType).asType(MethodType.methodType(
+                            boolean.class,
+                            type.parameterType(0)
+                        )),
+                        1,
+                        type.parameterList().subList(1, type.parameterCount())
+                    );
+                    next = new Guards(
+                        switchPoint,
+                        MethodHandles.guardWithTest(test, bound, current.target),
+                        current.count + 1
+                    );
+                } else {
+                    // Megamorphic. Stop adding guards and dispatch through the table until the next invalidation.
+                    MethodHandle getImplementation = dispatcher.protocols$$isDirect()
+                        ? GET_IMPLEMENTATION_OR_SELF.bindTo(dispatcher)
+                        : GET_IMPLEMENTATION.bindTo(dispatcher);
+                    getImplementation = getImplementation
+                        .asType(MethodType.methodType(method.type().parameterType(0), type.parameterType(0)));
+                    next = new Guards(switchPoint, MethodHandles.foldArguments(method, getImplementation), MAX_GUARDS);
+                }
+
+                guards = next;
+                site.setTarget(switchPoint.guardWithTest(next.target, relink));
+                return bound.invokeWithArguments(args);
+            }
+        }
+
+        /**
+         * An immutable chain of class checks linked under a switch point.
+         */
+        private static final class Guards {
+            final SwitchPoint switchPoint;
+            final MethodHandle target;
+            final int count;
+
+            Guards (SwitchPoint switchPoint, MethodHandle target, int count) {
+                this.switchPoint = switchPoint;
+                this.target = target;
+                this.count = count;
+            }
+        }
+    }
+
+    static void checkNotNull (Object o, String message) {
+        if (o == null) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+}
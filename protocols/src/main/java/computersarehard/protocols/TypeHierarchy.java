@@ -0,0 +1,68 @@
+package computersarehard.protocols;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The supertypes of a type in the order protocols look up their implementations.
+ *
+ * The order is computed once per type and shared by all protocols. It lists each type once, at the position it is
+ * first reached by walking the hierarchy in this order:
+ *
+ * * The type itself
+ * * Super-classes (excluding Object)
+ * * Interfaces, each followed by its super-interfaces, depth first
+ * * Super-class' interfaces, from the closest super-class up
+ * * Object
+ *
+ * Since a lookup stops at the first type with an implementation, types reached again later in the walk never change its
+ * result.
+ */
+final class TypeHierarchy {
+    // The linearization only refers to the type and its supertypes, which are loaded by the same class loader or one of
+    // its ancestors, so it does not keep any class loader alive on its own.
+    private static final ClassValue<Class<?>[]> LINEARIZATIONS = new ClassValue<Class<?>[]>() {
+        @Override
+        protected Class<?>[] computeValue (Class<?> type) {
+            return linearize(type);
+        }
+    };
+
+    private TypeHierarchy () {
+    }
+
+    /**
+     * Returns the type and its supertypes in lookup order. The returned array is shared and must not be modified.
+     *
+     * @param type The type.
+     * @return the type followed by its supertypes.
+     */
+    static Class<?>[] of (Class<?> type) {
+        return LINEARIZATIONS.get(type);
+    }
+
+    private static Class<?>[] linearize (Class<?> type) {
+        Set<Class<?>> types = new LinkedHashSet<>();
+        types.add(type);
+        // Object's superclass is null. Avoid checking for Object.class explicitly due to potential classloader issues.
+        for (Class<?> superclass = type.getSuperclass(); superclass != null && superclass.getSuperclass() != null;
+            superclass = superclass.getSuperclass()) {
+            types.add(superclass);
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            addInterfaces(c, types);
+        }
+        // Interfaces reach Object only through this last step.
+        types.add(Object.class);
+        return types.toArray(new Class<?>[types.size()]);
+    }
+
+    private static void addInterfaces (Class<?> type, Set<Class<?>> types) {
+        for (Class<?> i : type.getInterfaces()) {
+            // Super-interfaces already added were reached through another path, and so were their own.
+            if (types.add(i)) {
+                addInterfaces(i, types);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package computersarehard.protocols;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the types protocols have resolved and resolves them again in a later run.
+ *
+ * The first dispatch of each type walks the type hierarchy to find its implementation. Replaying a profile recorded
+ * during an earlier run, e.g. before a server starts to accept requests, moves that work out of the first requests:
+ *
+ * <pre>
+ * TypeProfile.replay(profile, protocols);
+ * ...
+ * TypeProfile.write(profile, protocols);
+ * </pre>
+ *
+ * Protocols are identified by the name of their interface and types by their name. Replaying loads each type through
+ * the interface's class loader without initializing it. Types that no longer exist or fail to load are skipped, just
+ * like types recorded for protocols that are not replayed. Generated classes such as lambdas and proxies are not
+ * recorded since their names change from run to run.
+ */
+public final class TypeProfile {
+    private static final int MAGIC = 0x50524f46;
+    private static final int FORMAT = 1;
+
+    private TypeProfile () {
+    }
+
+    /**
+     * Writes the types the given protocols have resolved so far to a file. The file is replaced atomically, so a
+     * concurrent {@link #replay(Path, Collection)} reads either the previous or the new profile.
+     *
+     * The profile consists of a table of names, written once each, and the indexes of each protocol's types in that
+     * table. It is compressed.
+     *
+     * @param file The profile to write.
+     * @param protocols The protocols whose types are recorded.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write (Path file, Collection<? extends Protocol<?>> protocols) throws IOException {
+        Protocols.checkNotNull(file, "file argument is required.");
+        Protocols.checkNotNull(protocols, "protocols argument is required.");
+        SortedMap<String, SortedSet<String>> profile = new TreeMap<>();
+        for (Protocol<?> protocol : protocols) {
+            Protocols.Dispatcher state = protocol.state().protocols$$getOwner();
+            SortedSet<String> types = profile.computeIfAbsent(state.protocols$$getApi().getName(),
+                api -> new TreeSet<>());
+            for (Class<?> type : state.protocols$$getResolvedTypes()) {
+                if (isNamed(type)) {
+                    types.add(type.getName());
+                }
+            }
+        }
+
+        Map<String, Integer> indexes = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, SortedSet<String>> entry : profile.entrySet()) {
+            index(entry.getKey(), indexes, names);
+            for (String type : entry.getValue()) {
+                index(type, indexes, names);
+            }
+        }
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeInt(names.size());
+                for (String name : names) {
+                    out.writeUTF(name);
+                }
+                out.writeInt(profile.size());
+                for (Map.Entry<String, SortedSet<String>> entry : profile.entrySet()) {
+                    out.writeInt(indexes.get(entry.getKey()));
+                    out.writeInt(entry.getValue().size());
+                    for (String type : entry.getValue()) {
+                        out.writeInt(indexes.get(type));
+                    }
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temporary = null;
+        } finally {
+            if (temporary != null) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Resolves the types recorded for the given protocols in a profile written by
+     * {@link #write(Path, Collection)}. Dispatching these types afterwards hits the protocols' caches, unless they are
+     * evicted again, e.g. by extending the protocol or by a cache capacity smaller than the profile.
+     *
+     * @param file The profile to replay.
+     * @param protocols The protocols to resolve the recorded types for.
+     * @return the number of types resolved, 0 if there is no profile yet.
+     * @throws IOException if the file cannot be read or is not a profile.
+     */
+    public static int replay (Path file, Collection<? extends Protocol<?>> protocols) throws IOException {
+        Protocols.checkNotNull(file, "file argument is required.");
+        Protocols.checkNotNull(protocols, "protocols argument is required.");
+        Map<String, String[]> profile;
+        try {
+            profile = read(file);
+        } catch (NoSuchFileException e) {
+            // First run
+            return 0;
+        }
+
+        int resolved = 0;
+        for (Protocol<?> protocol : protocols) {
+            Protocols.Dispatcher state = protocol.state().protocols$$getOwner();
+            Class<?> api = state.protocols$$getApi();
+            String[] names = profile.get(api.getName());
+            if (names == null) {
+                continue;
+            }
+            ClassLoader loader = api.getClassLoader() != null ? api.getClassLoader()
+                : ClassLoader.getSystemClassLoader();
+            List<Class<?>> types = new ArrayList<>(names.length);
+            for (String name : names) {
+                try {
+                    types.add(Class.forName(name, false, loader));
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // Removed or renamed since the profile was recorded
+                }
+            }
+            state.protocols$$warmUp(types);
+            resolved += types.size();
+        }
+        return resolved;
+    }
+
+    private static Map<String, String[]> read (Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException(file + " is not a type profile.");
+            }
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+            }
+            Map<String, String[]> profile = new HashMap<>();
+            for (int protocols = in.readInt(); protocols > 0; protocols--) {
+                String api = name(names, in.readInt(), file);
+                String[] types = new String[in.readInt()];
+                for (int i = 0; i < types.length; i++) {
+                    types[i] = name(names, in.readInt(), file);
+                }
+                profile.put(api, types);
+            }
+            return profile;
+        }
+    }
+
+    private static String name (String[] names, int index, Path file) throws IOException {
+        if (index < 0 || index >= names.length) {
+            throw new IOException(file + " is not a type profile.");
+        }
+        return names[index];
+    }
+
+    private static void index (String name, Map<String, Integer> indexes, List<String> names) {
+        if (indexes.putIfAbsent(name, names.size()) == null) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Returns whether the type can be loaded by its name in another run.
+     */
+    private static boolean isNamed (Class<?> type) {
+        // Hidden classes have a '/' in their name, lambdas on older JVMs are synthetic.
+        return type.getName().indexOf('/') < 0 && !type.isSynthetic() && !Proxy.isProxyClass(type);
+    }
+}
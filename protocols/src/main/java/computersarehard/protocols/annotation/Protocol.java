@@ -0,0 +1,33 @@
+package computersarehard.protocols.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface as a protocol whose dispatcher is generated at build time.
+ *
+ * With the {@code protocols-processor} annotation processor on the compiler's processor path, each annotated interface
+ * gets a dispatcher class next to it. {@link computersarehard.protocols.Protocols#define(Class)} loads that class
+ * instead of generating one, so defining the protocol does not generate code at runtime. Protocols defined with
+ * options that change the generated code (see {@link computersarehard.protocols.ProtocolOptions}) still generate
+ * their dispatchers at runtime.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface Protocol {
+    /**
+     * The simple name of a facade class to generate in the interface's package, or empty for no facade.
+     *
+     * The facade defines the protocol in a {@code PROTOCOL} field and has a static method forwarding to the
+     * dispatcher for every protocol method. Implementations are registered through the field, typically in a static
+     * block of the class that owns them; callers use the static methods instead of a hand-written wrapper. Calls
+     * through the facade are static calls on a constant dispatcher, which the JIT can inline.
+     *
+     * @return the name of the facade class.
+     */
+    String facade () default "";
+}
@@ -0,0 +1,121 @@
+package computersarehard.protocols;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BackgroundGenerationTest {
+    @Test
+    public void testInterimDispatcher () {
+        List<Runnable> tasks = new ArrayList<>();
+        Protocol<Describe> protocol = Protocols.define(Describe.class, ProtocolOptions.defaults()
+            .withBackgroundGeneration(tasks::add));
+        Describe interim = protocol.getDispatcher();
+        assertTrue("nothing is generated until the task runs", Proxy.isProxyClass(interim.getClass()));
+
+        protocol.extend(String.class, (value, suffix) -> "string " + value + suffix);
+        assertEquals("string a!", interim.describe("a", "!"));
+        assertTrue(protocol.satisfies("a"));
+        assertFalse(protocol.satisfies(1));
+        try {
+            interim.describe(1, "");
+            fail("Integer is not extended");
+        } catch (NoImplementationException e) {
+            assertEquals(Integer.class, e.getDispatchType());
+        }
+        assertEquals(interim, interim);
+
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertTrue(protocol.generation.isDone());
+        Describe generated = protocol.getDispatcher();
+        assertTrue(generated instanceof Protocols.Dispatcher);
+        assertEquals("implementations are taken over", "string a!", generated.describe("a", "!"));
+
+        protocol.extend(Integer.class, (value, suffix) -> "integer " + value + suffix);
+        assertEquals("integer 1?", generated.describe(1, "?"));
+        assertEquals("the interim dispatcher forwards", "integer 1?", interim.describe(1, "?"));
+    }
+
+    @Test
+    public void testBindBeforeGeneration () {
+        List<Runnable> tasks = new ArrayList<>();
+        Protocol<Describe> protocol = Protocols.define(Describe.class, ProtocolOptions.defaults()
+            .withBackgroundGeneration(tasks::add));
+        protocol.extend(CharSequence.class, (value, suffix) -> "chars " + value + suffix);
+        Describe bound = protocol.bind(String.class);
+        assertEquals("chars a!", bound.describe("a", "!"));
+
+        tasks.get(0).run();
+        assertEquals("chars a!", bound.describe("a", "!"));
+        protocol.extend(String.class, (value, suffix) -> "string " + value + suffix);
+        assertEquals("extends after generation are seen", "string a!", bound.describe("a", "!"));
+        assertEquals("string a!", protocol.bind(String.class).describe("a", "!"));
+    }
+
+    @Test
+    public void testFreezeIsTakenOver () {
+        List<Runnable> tasks = new ArrayList<>();
+        Protocol<Describe> protocol = Protocols.define(Describe.class, ProtocolOptions.defaults()
+            .withBackgroundGeneration(tasks::add)
+            .withInlineCacheSize(2));
+        protocol.extend(Object.class, (value, suffix) -> "object");
+        protocol.freeze();
+        tasks.get(0).run();
+
+        assertTrue(protocol.isFrozen());
+        assertEquals("object", protocol.getDispatcher().describe(1, ""));
+        try {
+            protocol.extend(String.class, (value, suffix) -> "string");
+            fail("the generated dispatcher is frozen");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentExtend () throws Exception {
+        Class<?>[] types = {
+            String.class, Integer.class, Long.class, Double.class, Short.class, Byte.class, Float.class,
+            Character.class, Boolean.class, StringBuilder.class, StringBuffer.class, ArrayList.class
+        };
+        for (int round = 0; round < 20; round++) {
+            Protocol<Describe> protocol = Protocols.define(Describe.class, ProtocolOptions.defaults()
+                .withBackgroundGeneration(ForkJoinPool.commonPool()));
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (Class<?> type : types) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    protocol.extend(type, (value, suffix) -> type.getName());
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            protocol.generation.get();
+
+            Describe dispatcher = protocol.getDispatcher();
+            assertTrue(dispatcher instanceof Protocols.Dispatcher);
+            assertEquals("Every registration is kept", String.class.getName(), dispatcher.describe("", ""));
+            assertEquals(Integer.class.getName(), dispatcher.describe(1, ""));
+            assertEquals(ArrayList.class.getName(), dispatcher.describe(new ArrayList<>(), ""));
+        }
+    }
+
+    public static interface Describe {
+        public String describe (Object value, String suffix);
+    }
+}
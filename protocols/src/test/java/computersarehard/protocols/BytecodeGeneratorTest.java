@@ -0,0 +1,165 @@
+package computersarehard.protocols;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BytecodeGeneratorTest {
+    private static final ProtocolOptions OPTIONS = ProtocolOptions.defaults()
+        .withCodeGenerator(CodeGenerator.BYTECODE);
+
+    @Test
+    public void testDispatch () {
+        Protocol<Mixed> mixed = Protocols.define(Mixed.class, OPTIONS);
+        mixed.extend(String.class, new StringMixed());
+        assertMixed(mixed);
+
+        try {
+            mixed.getDispatcher().describe(1, 2L, 3.0);
+            fail("Integer is not extended");
+        } catch (NoImplementationException e) {
+            assertEquals(Integer.class, e.getDispatchType());
+        }
+    }
+
+    @Test
+    public void testDispatcherClassIsShared () {
+        Protocol<Mixed> first = Protocols.define(Mixed.class, OPTIONS);
+        Protocol<Mixed> second = Protocols.define(Mixed.class, OPTIONS);
+        assertSame(first.getDispatcher().getClass(), second.getDispatcher().getClass());
+    }
+
+    @Test
+    public void testInlineCache () {
+        Protocol<Mixed> mixed = Protocols.define(Mixed.class, OPTIONS.withInlineCacheSize(2));
+        mixed.extend(String.class, new StringMixed());
+        mixed.extend(Number.class, new Named("number"));
+        for (int i = 0; i < 2; i++) {
+            assertMixed(mixed);
+            assertEquals("number 1", mixed.getDispatcher().describe(1, 0, 0));
+            assertEquals("megamorphic", "number 2", mixed.getDispatcher().describe(2L, 0, 0));
+        }
+
+        mixed.extend(Integer.class, new Named("integer"));
+        assertEquals("inline caches are reset", "integer 1", mixed.getDispatcher().describe(1, 0, 0));
+    }
+
+    @Test
+    public void testSpecialization () {
+        Protocol<Mixed> mixed = Protocols.define(Mixed.class, OPTIONS.withSpecialization(10, 2));
+        mixed.extend(String.class, new StringMixed());
+        mixed.extend(Object.class, new Named("object"));
+        List<Object> values = Arrays.<Object>asList("a", "b", 1, new ArrayList<>(), null);
+        for (int i = 0; i < 3; i++) {
+            for (Object value : values) {
+                mixed.getDispatcher().describe(value, 0, 0);
+            }
+        }
+
+        assertNotNull(
+            "specialized after warm-up",
+            ((Protocols.Dispatcher) mixed.getDispatcher()).protocols$$getSpecialization()
+        );
+        assertMixed(mixed);
+        assertEquals("object 1", mixed.getDispatcher().describe(1, 0, 0));
+        assertEquals("object null", mixed.getDispatcher().describe(null, 0, 0));
+    }
+
+    @Test
+    public void testDirectImplementations () {
+        Protocol<Mixed> mixed = Protocols.define(Mixed.class, OPTIONS.withDirectImplementations(true));
+        mixed.extend(String.class, new StringMixed());
+        assertMixed(mixed);
+        assertEquals("self", mixed.getDispatcher().describe(new SelfMixed(), 0, 0));
+    }
+
+    @Test
+    public void testCallSiteDispatcher () {
+        Protocol<Mixed> mixed = Protocols.define(Mixed.class, OPTIONS.withEngine(DispatchEngine.INVOKEDYNAMIC));
+        mixed.extend(String.class, new StringMixed());
+        assertMixed(mixed);
+
+        mixed.extend(CharSequence.class, new Named("sequence"));
+        assertEquals("sequence b", mixed.getDispatcher().describe(new StringBuilder("b"), 0, 0));
+    }
+
+    @Test
+    public void testBind () {
+        Protocol<Mixed> mixed = Protocols.define(Mixed.class, OPTIONS);
+        mixed.extend(String.class, new StringMixed());
+        Mixed bound = mixed.bind(String.class);
+        assertEquals("string a 1 2.0", bound.describe("a", 1, 2.0));
+        assertEquals(4, bound.length("abcd"));
+    }
+
+    private static void assertMixed (Protocol<Mixed> mixed) {
+        Mixed dispatcher = mixed.getDispatcher();
+        assertEquals("string a 1 2.5", dispatcher.describe("a", 1L, 2.5));
+        assertEquals(3, dispatcher.length("abc"));
+        assertEquals(6.0, dispatcher.scale("abc", 2), 0);
+        dispatcher.check("abc", true);
+        try {
+            dispatcher.check("abc", false);
+            fail("void methods are dispatched");
+        } catch (IllegalStateException e) {
+            assertEquals("abc", e.getMessage());
+        }
+    }
+
+    public static interface Mixed {
+        public String describe (Object value, long l, double d);
+
+        public int length (Object value);
+
+        public double scale (Object value, int factor);
+
+        public void check (Object value, boolean valid);
+    }
+
+    static class StringMixed implements Mixed {
+        @Override
+        public String describe (Object value, long l, double d) {
+            return "string " + value + " " + l + " " + d;
+        }
+
+        @Override
+        public int length (Object value) {
+            return ((String) value).length();
+        }
+
+        @Override
+        public double scale (Object value, int factor) {
+            return length(value) * factor;
+        }
+
+        @Override
+        public void check (Object value, boolean valid) {
+            if (!valid) {
+                throw new IllegalStateException((String) value);
+            }
+        }
+    }
+
+    static class Named extends StringMixed {
+        private final String name;
+
+        Named (String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String describe (Object value, long l, double d) {
+            return name + " " + value;
+        }
+    }
+
+    static class SelfMixed extends StringMixed {
+        @Override
+        public String describe (Object value, long l, double d) {
+            return "self";
+        }
+    }
+}
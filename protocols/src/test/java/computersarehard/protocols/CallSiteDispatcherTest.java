@@ -0,0 +1,112 @@
+package computersarehard.protocols;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class CallSiteDispatcherTest {
+    private static final ProtocolOptions OPTIONS = ProtocolOptions.defaults().withEngine(DispatchEngine.INVOKEDYNAMIC);
+
+    private Protocol<Sized> sized;
+
+    @Before
+    public void setup () {
+        sized = Protocols.define(Sized.class, OPTIONS);
+    }
+
+    @Test
+    public void testEachDefineHasItsOwnDispatcherClass () {
+        assertNotSame(
+            "protocols do not share linked call sites",
+            sized.getDispatcher().getClass(),
+            Protocols.define(Sized.class, OPTIONS).getDispatcher().getClass()
+        );
+    }
+
+    @Test
+    public void testDispatch () {
+        sized.extend(String.class, (value, scale) -> ((String) value).length() * scale);
+        sized.extend(Void.class, (value, scale) -> -1);
+        sized.extend(CharSequence.class, (value, scale) -> 100 * scale);
+
+        assertEquals("exact match", 6, sized.getDispatcher().size("abc", 2));
+        assertEquals("null dispatch", -1, sized.getDispatcher().size(null, 2));
+        assertEquals("interface match", 200, sized.getDispatcher().size(new StringBuilder("abc"), 2));
+        assertEquals("linked call site", 9, sized.getDispatcher().size("abc", 3));
+    }
+
+    @Test
+    public void testExtendRelinksCallSites () {
+        sized.extend(Object.class, (value, scale) -> 0);
+        assertEquals("Object implementation is used", 0, sized.getDispatcher().size("abc", 1));
+
+        sized.extend(String.class, (value, scale) -> ((String) value).length() * scale);
+        assertEquals("Call site is relinked after extend", 3, sized.getDispatcher().size("abc", 1));
+    }
+
+    @Test
+    public void testMegamorphicCallSite () {
+        sized.extend(Object.class, (value, scale) -> -1);
+        sized.extend(Collection.class, (value, scale) -> ((Collection<?>) value).size() * scale);
+
+        List<Object> values = Arrays.<Object>asList(
+            new ArrayList<>(Arrays.asList(1)),
+            new LinkedList<>(Arrays.asList(1)),
+            new HashSet<>(Arrays.asList(1)),
+            new TreeSet<>(Arrays.asList(1)),
+            Arrays.asList(1),
+            new HashMap<>(),
+            new TreeMap<>(),
+            "a",
+            1,
+            1L,
+            new Object()
+        );
+        for (int i = 0; i < 3; i++) {
+            for (Object value : values) {
+                int expected = value instanceof Collection ? 2 : -1;
+                assertEquals(value.getClass().getName(), expected, sized.getDispatcher().size(value, 2));
+            }
+        }
+
+        sized.extend(Integer.class, (value, scale) -> (Integer) value * scale);
+        assertEquals("Megamorphic call site is relinked after extend", 2, sized.getDispatcher().size(1, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingImplementation () {
+        sized.getDispatcher().size("abc", 1);
+    }
+
+    @Test
+    public void testDirectImplementations () {
+        Protocol<Sized> direct = Protocols.define(Sized.class, OPTIONS.withDirectImplementations(true));
+        direct.extend(Object.class, (value, scale) -> -1);
+
+        Sized box = (value, scale) -> 10 * scale;
+        assertEquals("receiver is invoked directly", 20, direct.getDispatcher().size(box, 2));
+        assertEquals("registered types still dispatch", -1, direct.getDispatcher().size("abc", 2));
+        assertEquals("linked call site", 30, direct.getDispatcher().size(box, 3));
+
+        // Push the call site past its guards
+        for (int i = 0; i < 20; i++) {
+            final int size = i;
+            assertEquals(size * 2, direct.getDispatcher().size((Sized) (value, scale) -> size * scale, 2));
+        }
+        assertEquals("megamorphic call site", -1, direct.getDispatcher().size(1, 2));
+    }
+
+    public static interface Sized {
+        public int size (Object value, int scale);
+    }
+}
@@ -0,0 +1,124 @@
+package computersarehard.protocols;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ClassCacheTest {
+    private static final String CLASS_NAME = Describe.class.getName() + "$$Protocol$$Cached";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger generated = new AtomicInteger();
+    private final Callable<byte[]> generate = () -> {
+        generated.incrementAndGet();
+        return BytecodeGenerator.writeDispatcherClass(Describe.class, CLASS_NAME, 0, false, false);
+    };
+
+    @Test
+    public void testDefineStoresAndLoadsEntries () throws Exception {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath().resolve("cache"), CodeGenerator.BYTECODE);
+        assertDispatches(cache.define(Describe.class, CLASS_NAME, generate));
+        assertEquals(1, generated.get());
+        getEntry(new File(folder.getRoot(), "cache"));
+
+        assertDispatches(cache.define(Describe.class, CLASS_NAME, generate));
+        assertEquals("the class is loaded from the entry", 1, generated.get());
+
+        new ClassCache(folder.getRoot().toPath().resolve("cache"), CodeGenerator.JAVASSIST)
+            .define(Describe.class, CLASS_NAME, generate);
+        assertEquals("entries are specific to the code generator", 2, generated.get());
+    }
+
+    @Test
+    public void testCorruptEntriesAreReplaced () throws Exception {
+        ClassCache cache = new ClassCache(folder.getRoot().toPath(), CodeGenerator.BYTECODE);
+        cache.define(Describe.class, CLASS_NAME, generate);
+        Path entry = getEntry(folder.getRoot()).toPath();
+        byte[] valid = Files.readAllBytes(entry);
+
+        // Flipped payload byte, flipped key byte, truncated
+        int[] corruptions = {valid.length - 1, 10, -1};
+        for (int corruption : corruptions) {
+            byte[] corrupt = valid.clone();
+            if (corruption < 0) {
+                corrupt = Arrays.copyOf(valid, valid.length / 2);
+            } else {
+                corrupt[corruption] ^= 1;
+            }
+            Files.write(entry, corrupt);
+
+            int before = generated.get();
+            assertDispatches(cache.define(Describe.class, CLASS_NAME, generate));
+            assertEquals("corrupt entries are not defined", before + 1, generated.get());
+            assertArrayEquals("the entry is replaced", valid, Files.readAllBytes(entry));
+        }
+    }
+
+    @Test
+    public void testUnlinkableEntriesAreReplaced () throws Exception {
+        // A class name of its own: once defined from the entry, a class with the name would stay in the class loader.
+        String className = Describe.class.getName() + "$$Protocol$$Unlinkable";
+        ClassPool pool = new ClassPool(true);
+        CtClass stale = pool.makeClass(className);
+        stale.addInterface(pool.makeInterface(Describe.class.getName() + "$$Removed"));
+        ClassCache cache = new ClassCache(folder.getRoot().toPath(), CodeGenerator.BYTECODE);
+        byte[] key = cache.key(Describe.class, className);
+        Path entry = cache.file(className, key);
+        cache.write(entry, key, stale.toBytecode());
+
+        assertDispatches(cache.define(Describe.class, className, () -> {
+            generated.incrementAndGet();
+            return BytecodeGenerator.writeDispatcherClass(Describe.class, className, 0, false, false);
+        }));
+        assertEquals("the class is generated again", 1, generated.get());
+        assertTrue(Files.exists(entry));
+        assertDispatches(cache.define(Describe.class, className, generate));
+        assertEquals("the entry is replaced", 1, generated.get());
+    }
+
+    @Test
+    public void testDefineWithClassCache () throws Exception {
+        Path directory = folder.getRoot().toPath();
+        for (CodeGenerator generator : CodeGenerator.values()) {
+            Protocol<Describe> protocol = Protocols.define(Describe.class, ProtocolOptions.defaults()
+                .withClassCache(directory)
+                .withCodeGenerator(generator)
+                .withInlineCacheSize(1));
+            protocol.extend(String.class, value -> "string " + value);
+            assertEquals("string a", protocol.getDispatcher().describe("a"));
+        }
+        File[] entries = folder.getRoot().listFiles();
+        assertEquals(1, entries.length);
+        assertTrue(entries[0].getName().startsWith(Describe.class.getName() + "$$Protocol$$Pic1-"));
+    }
+
+    private static File getEntry (File directory) {
+        File[] entries = directory.listFiles();
+        assertEquals(1, entries.length);
+        assertTrue(entries[0].getName().startsWith(CLASS_NAME + "-"));
+        return entries[0];
+    }
+
+    private static void assertDispatches (Class<?> dispatcherClass) throws Exception {
+        Protocols.Dispatcher dispatcher = (Protocols.Dispatcher) dispatcherClass.getConstructor(Class.class)
+            .newInstance(Describe.class);
+        dispatcher.protocols$$extend(Object.class, (Describe) value -> "object " + value);
+        assertEquals("object 1", ((Describe) dispatcher).describe(1));
+    }
+
+    public static interface Describe {
+        public String describe (Object value);
+    }
+}
@@ -0,0 +1,54 @@
+package computersarehard.protocols;
+
+import java.util.function.Supplier;
+
+import javassist.ClassPool;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ClassIdsTest {
+    @Test
+    public void testIds () {
+        int string = ClassIds.of(String.class);
+        int integer = ClassIds.of(Integer.class);
+        assertNotEquals(string, integer);
+        assertEquals("IDs are stable", string, ClassIds.of(String.class));
+        assertSame(String.class, ClassIds.get(string));
+        assertSame(Integer.class, ClassIds.get(integer));
+        assertNull("unassigned ID", ClassIds.get(Integer.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void testIdsOfUnloadedClassesAreReused () throws Exception {
+        int id = idOfUnreachableClass("First");
+        for (int i = 0; i < 20 && ClassIds.get(id) != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assume.assumeTrue("the class was unloaded", ClassIds.get(id) == null);
+
+        // Lower IDs freed by other tests may be handed out first.
+        assertTrue("the ID is reused", idOfUnreachableClass("Second") <= id);
+    }
+
+    @Test
+    public void testHiddenClassesHaveNoId () {
+        Supplier<String> lambda = () -> "lambda";
+        // Lambdas are hidden (or VM anonymous) classes, which have a '/' in their name.
+        if (lambda.getClass().getName().indexOf('/') >= 0) {
+            assertEquals(ClassIds.NONE, ClassIds.of(lambda.getClass()));
+        }
+    }
+
+    private static int idOfUnreachableClass (String name) throws Exception {
+        byte[] bytes = new ClassPool(true).makeClass(ClassIdsTest.class.getName() + "$" + name).toBytecode();
+        ClassLoader loader = new ClassLoader(ClassIdsTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass (String className) {
+                return defineClass(className, bytes, 0, bytes.length);
+            }
+        };
+        return ClassIds.of(loader.loadClass(ClassIdsTest.class.getName() + "$" + name));
+    }
+}
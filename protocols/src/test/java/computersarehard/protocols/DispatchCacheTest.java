@@ -0,0 +1,148 @@
+package computersarehard.protocols;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DispatchCacheTest {
+    @Test
+    public void testCapacityIsValidated () {
+        try {
+            ProtocolOptions.defaults().withCacheCapacity(-1, EvictionPolicy.FIFO);
+            fail("Capacity must not be negative");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Cache capacity must not be negative.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFifoEviction () {
+        Protocol<Name> name = define(ProtocolOptions.defaults().withCacheCapacity(2, EvictionPolicy.FIFO));
+        assertEquals("String", name.getDispatcher().name("a"));
+        assertEquals("Integer", name.getDispatcher().name(1));
+        assertEquals("String", name.getDispatcher().name("a"));
+        assertEquals("ArrayList", name.getDispatcher().name(new ArrayList<>()));
+
+        assertEquals(2, name.getStatistics().getCachedTypes());
+        assertEquals(1, name.getStatistics().getEvictions());
+        assertEquals("Evicted type is resolved again", "String", name.getDispatcher().name("b"));
+        assertEquals(2, name.getStatistics().getEvictions());
+    }
+
+    @Test
+    public void testSecondChanceEviction () {
+        Protocol<Name> name = define(ProtocolOptions.defaults().withCacheCapacity(2, EvictionPolicy.SECOND_CHANCE));
+        name.getDispatcher().name("a");
+        name.getDispatcher().name(1);
+        // Both types have been used, String was cached first and is spared once.
+        name.getDispatcher().name(new ArrayList<>());
+        assertEquals(1, name.getStatistics().getEvictions());
+
+        name.getDispatcher().name(new ArrayList<>());
+        name.getDispatcher().name(new HashMap<>());
+        name.getDispatcher().name(new HashMap<>());
+        name.getDispatcher().name(new ArrayList<>());
+        assertEquals("Recently used type stays cached", 2, name.getStatistics().getEvictions());
+        assertEquals(2, name.getStatistics().getCachedTypes());
+    }
+
+    @Test
+    public void testEvictedKeysLeaveQueue () {
+        DispatchCache<Value> cache = new DispatchCache<>(type -> new Value(), null, 100, EvictionPolicy.FIFO);
+        for (int i = 0; i < 1000; i++) {
+            cache.get(String.class);
+            cache.get(Integer.class);
+            cache.evict(type -> type == String.class);
+            cache.remove(Integer.class);
+        }
+        assertEquals(0, cache.size());
+        assertTrue("queue is compacted: " + cache.queued(), cache.queued() <= 2);
+
+        cache.get(String.class);
+        cache.get(Integer.class);
+        assertEquals(2, cache.size());
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    public void testCanonicalization () {
+        Protocol<Name> name = define(ProtocolOptions.defaults().withCanonicalization(true));
+        for (int i = 0; i < 3; i++) {
+            name.getDispatcher().name(runnable(i));
+        }
+        Object proxy = Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Runnable.class},
+            (target, method, args) -> null);
+        name.getDispatcher().name(proxy);
+
+        // Lambdas share one entry, the proxy class (with another superclass) has its own.
+        assertEquals(2, name.getStatistics().getCachedTypes());
+
+        name.extend(LinkedList.class, v -> "list");
+        assertEquals("Unrelated extend keeps shared entries", 0, name.getStatistics().getLastInvalidations());
+        name.extend(Runnable.class, v -> "runnable");
+        assertEquals(2, name.getStatistics().getLastInvalidations());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("runnable", name.getDispatcher().name(runnable(i)));
+        }
+        assertEquals("runnable", name.getDispatcher().name(proxy));
+    }
+
+    @Test
+    public void testCanonicalTypeCanBeExtended () {
+        Protocol<Name> name = define(ProtocolOptions.defaults().withCanonicalization(true));
+        name.extend(Runnable.class, v -> "runnable");
+        Runnable first = runnable(0);
+        Runnable second = () -> { };
+        assertEquals("runnable", name.getDispatcher().name(first));
+        assertEquals("runnable", name.getDispatcher().name(second));
+
+        name.extend(first.getClass(), v -> "first");
+        assertEquals("first", name.getDispatcher().name(first));
+        assertEquals("runnable", name.getDispatcher().name(second));
+    }
+
+    @Test
+    public void testExtendedTypeLeavesSharedEntry () {
+        Protocol<Name> name = define(ProtocolOptions.defaults().withCanonicalization(true));
+        name.extend(Runnable.class, v -> "runnable");
+        Runnable first = runnable(0);
+        Runnable second = runnable(1);
+        assertEquals("runnable", name.getDispatcher().name(first));
+        assertEquals("runnable", name.getDispatcher().name(second));
+
+        name.extend(second.getClass(), v -> "second");
+        // Revalidates the shared entry for the type that was not extended first
+        assertEquals("runnable", name.getDispatcher().name(first));
+        assertEquals("second", name.getDispatcher().name(second));
+        assertEquals("runnable", name.getDispatcher().name(first));
+    }
+
+    private static Runnable runnable (int i) {
+        // A distinct lambda class per branch
+        switch (i) {
+            case 0:
+                return () -> { };
+            case 1:
+                return () -> { };
+            default:
+                return () -> { };
+        }
+    }
+
+    private static Protocol<Name> define (ProtocolOptions options) {
+        Protocol<Name> name = Protocols.define(Name.class, options);
+        name.extend(Object.class, v -> v.getClass().getSimpleName());
+        return name;
+    }
+
+    public static interface Name {
+        public String name (Object value);
+    }
+
+    private static final class Value extends DispatchCache.Entry {
+    }
+}
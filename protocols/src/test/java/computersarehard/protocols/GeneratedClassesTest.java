@@ -0,0 +1,52 @@
+package computersarehard.protocols;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GeneratedClassesTest {
+    @Test
+    public void testFindsClassesWithoutClassFiles () throws Exception {
+        // Like a native image: the loader defines the classes but has no class files to look up.
+        ClassPool pool = new ClassPool(true);
+        String name = GeneratedClassesTest.class.getName() + "$Generated";
+        CtClass api = pool.makeInterface(name);
+        CtClass dispatcher = pool.makeClass(name + "$$Protocol");
+        dispatcher.addInterface(api);
+        ResourcelessLoader loader = new ResourcelessLoader();
+        loader.classes.put(api.getName(), api.toBytecode());
+        loader.classes.put(dispatcher.getName(), dispatcher.toBytecode());
+
+        Class<?> apiClass = loader.loadClass(api.getName());
+        assertNull(loader.getResource(dispatcher.getName().replace('.', '/') + ".class"));
+        assertSame(loader.loadClass(dispatcher.getName()), GeneratedClasses.find(apiClass, dispatcher.getName()));
+        assertNull("missing classes are not found", GeneratedClasses.find(apiClass, name + "$$Missing"));
+    }
+
+    private static final class ResourcelessLoader extends ClassLoader {
+        final Map<String, byte[]> classes = new HashMap<>();
+
+        ResourcelessLoader () {
+            super(GeneratedClassesTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> findClass (String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        @Override
+        public URL getResource (String name) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package computersarehard.protocols;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class InlineCacheTest {
+    private Protocol<Describe> describe;
+
+    @Before
+    public void setup () {
+        describe = Protocols.define(Describe.class, ProtocolOptions.defaults().withInlineCacheSize(2));
+    }
+
+    @Test
+    public void testInlineCacheSizeIsValidated () {
+        try {
+            ProtocolOptions.defaults().withInlineCacheSize(9);
+            fail("Inline cache size is limited");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Inline cache size must be between 0 and 8.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDispatch () {
+        describe.extend(String.class, (value, out) -> "string " + value);
+        describe.extend(Void.class, (value, out) -> "null");
+        describe.extend(Number.class, (value, out) -> "number " + value);
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals("string a", describe.getDispatcher().describe("a", null));
+            assertEquals("null", describe.getDispatcher().describe(null, null));
+            assertEquals("number 1", describe.getDispatcher().describe(1, null));
+            assertEquals("number 2", describe.getDispatcher().describe(2L, null));
+        }
+    }
+
+    @Test
+    public void testVoidMethod () {
+        Protocol<Append> append = Protocols.define(Append.class, ProtocolOptions.defaults().withInlineCacheSize(2));
+        append.extend(Object.class, (value, out) -> out.add("object"));
+        List<Object> out = new ArrayList<>();
+        append.getDispatcher().append("a", out);
+        append.getDispatcher().append(1, out);
+        assertEquals(Arrays.asList("object", "object"), out);
+    }
+
+    @Test
+    public void testExtendResetsInlineCaches () {
+        describe.extend(Object.class, (value, out) -> "object");
+        assertEquals("object", describe.getDispatcher().describe("a", null));
+        assertEquals("object", describe.getDispatcher().describe(1, null));
+
+        describe.extend(String.class, (value, out) -> "string " + value);
+        assertEquals("Cached slot is cleared by extend", "string a", describe.getDispatcher().describe("a", null));
+        assertEquals("object", describe.getDispatcher().describe(1, null));
+    }
+
+    @Test
+    public void testProtocolsShareGeneratedClassButNotCaches () {
+        Protocol<Describe> other = Protocols.define(Describe.class, ProtocolOptions.defaults().withInlineCacheSize(2));
+        describe.extend(Object.class, (value, out) -> "object");
+        other.extend(Object.class, (value, out) -> "other");
+
+        assertSame(describe.getDispatcher().getClass(), other.getDispatcher().getClass());
+        assertEquals("object", describe.getDispatcher().describe("a", null));
+        assertEquals("other", other.getDispatcher().describe("a", null));
+    }
+
+    public static interface Describe {
+        public String describe (Object value, List<Object> out);
+    }
+
+    public static interface Append {
+        public void append (Object value, List<Object> out);
+    }
+}
@@ -0,0 +1,81 @@
+package computersarehard.protocols;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PersistentClassMapTest {
+    private static final Class<?>[] TYPES = {
+        Object.class, String.class, Integer.class, Long.class, Double.class, Void.class, CharSequence.class,
+        Number.class, Iterable.class, java.util.List.class, java.util.ArrayList.class, java.util.Map.class,
+        java.util.HashMap.class, java.time.Instant.class, java.time.LocalDate.class, java.math.BigDecimal.class
+    };
+
+    @Test
+    public void testEmpty () {
+        assertNull(PersistentClassMap.empty().get(Object.class));
+        assertEquals(0, PersistentClassMap.empty().size());
+    }
+
+    @Test
+    public void testWith () {
+        PersistentClassMap map = PersistentClassMap.empty();
+        for (Class<?> type : TYPES) {
+            PersistentClassMap next = map.with(type, type.getSimpleName());
+            assertFalse("Original map is unchanged", map.containsKey(type));
+            map = next;
+        }
+
+        assertEquals(TYPES.length, map.size());
+        for (Class<?> type : TYPES) {
+            assertEquals(type.getSimpleName(), map.get(type));
+        }
+        assertNull("Class that is not a key", map.get(StringBuilder.class));
+
+        PersistentClassMap replaced = map.with(String.class, "other");
+        assertEquals("Value is replaced", "other", replaced.get(String.class));
+        assertEquals("String", map.get(String.class));
+        assertEquals(TYPES.length, replaced.size());
+    }
+
+    @Test
+    public void testManyEntries () {
+        // Array classes of each dimension are distinct keys, enough to fill several levels of the trie.
+        List<Class<?>> types = new ArrayList<>();
+        for (Class<?> type : TYPES) {
+            Class<?> array = type;
+            for (int dimensions = 0; dimensions < 100; dimensions++) {
+                types.add(array);
+                array = Array.newInstance(array, 0).getClass();
+            }
+        }
+
+        PersistentClassMap map = PersistentClassMap.empty();
+        for (int i = 0; i < types.size(); i++) {
+            map = map.with(types.get(i), i);
+        }
+        assertEquals(types.size(), map.size());
+        assertEquals(types.size(), map.toMap().size());
+        for (int i = 0; i < types.size(); i++) {
+            assertEquals(i, map.get(types.get(i)));
+        }
+    }
+
+    @Test
+    public void testToMap () {
+        PersistentClassMap map = PersistentClassMap.empty();
+        for (Class<?> type : TYPES) {
+            map = map.with(type, type.getSimpleName());
+        }
+
+        Map<Class<?>, Object> entries = map.toMap();
+        assertEquals(TYPES.length, entries.size());
+        for (Class<?> type : TYPES) {
+            assertEquals(type.getSimpleName(), entries.get(type));
+        }
+    }
+}
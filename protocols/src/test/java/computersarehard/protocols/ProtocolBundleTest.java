@@ -0,0 +1,77 @@
+package computersarehard.protocols;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProtocolBundleTest {
+    @Test
+    public void testResolve () {
+        ProtocolBundle bundle = Protocols.bundle(Describe.class, Size.class);
+        bundle.get(Describe.class).extend(CharSequence.class, value -> "chars " + value);
+        bundle.get(Describe.class).extend(Void.class, value -> "null");
+        bundle.get(Size.class).extend(String.class, value -> ((String) value).length());
+
+        ProtocolBundle.Implementations implementations = bundle.resolve("abc");
+        assertEquals("chars abc", implementations.get(Describe.class).describe("abc"));
+        assertEquals(3, implementations.get(Size.class).size("abc"));
+        assertSame("resolutions are cached", implementations, bundle.resolve(String.class));
+        assertEquals("null", bundle.resolve((Object) null).get(Describe.class).describe(null));
+
+        ProtocolBundle.Implementations builder = bundle.resolve(new StringBuilder());
+        assertTrue(builder.satisfies(Describe.class));
+        assertFalse(builder.satisfies(Size.class));
+        try {
+            builder.get(Size.class);
+            fail("StringBuilder is not extended");
+        } catch (NoImplementationException e) {
+            assertEquals(StringBuilder.class, e.getDispatchType());
+        }
+        try {
+            builder.get(Runnable.class);
+            fail("Runnable is not bundled");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Protocol java.lang.Runnable is not bundled.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testExtendInvalidates () {
+        ProtocolBundle bundle = Protocols.bundle(Describe.class, Size.class);
+        bundle.get(Describe.class).extend(Object.class, value -> "object");
+        assertFalse(bundle.resolve(1).satisfies(Size.class));
+
+        bundle.get(Size.class).extend(Number.class, value -> ((Number) value).intValue());
+        ProtocolBundle.Implementations implementations = bundle.resolve(1);
+        assertEquals(1, implementations.get(Size.class).size(1));
+        assertEquals("object", implementations.get(Describe.class).describe(1));
+
+        bundle.get(Describe.class).extend(Integer.class, value -> "integer");
+        assertEquals("integer", bundle.resolve(1).get(Describe.class).describe(1));
+        assertEquals("the protocols dispatch on their own too", "integer",
+            bundle.get(Describe.class).getDispatcher().describe(1));
+    }
+
+    @Test
+    public void testInvalidBundles () {
+        try {
+            Protocols.bundle(Describe.class, Describe.class);
+            fail("duplicate interface");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Protocol " + Describe.class.getName() + " is bundled twice.", e.getMessage());
+        }
+        try {
+            Protocols.bundle(ProtocolOptions.defaults().withDirectImplementations(true), Describe.class);
+            fail("direct implementations");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public static interface Describe {
+        public String describe (Object value);
+    }
+
+    public static interface Size {
+        public int size (Object value);
+    }
+}
@@ -0,0 +1,501 @@
+package computersarehard.protocols;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class ProtocolsTest {
+    private Protocol<Reversable> reversable;
+
+    @Before
+    public void setup () {
+        reversable = Protocols.define(Reversable.class);
+    }
+
+    @Test
+    public void testDefine () {
+        assertNotNull("returned instance is not null", reversable);
+        assertTrue(
+            "returned instance contains a dispatcher that implements interface",
+            reversable.getDispatcher() instanceof Reversable
+        );
+    }
+
+    @Test
+    public void testProtocolClassMustBeInterface () {
+        try {
+            Protocols.define(Object.class);
+        } catch (Exception e) {
+            assertEquals("Protocol class must be an interface.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testProtocolMethodsMustHaveArguments () {
+        try {
+            Protocols.validateProtocol(NoArgsProtocol.class);
+        } catch (Exception e) {
+            assertEquals("Protocol method test does not take any parameters.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testProtocolMethodsMustHaveReferenceFirstArg () {
+        try {
+            Protocols.validateProtocol(PrimitiveProtocol.class);
+        } catch (Exception e) {
+            assertEquals("Protocol method test does not take reference type as first argument.", e.getMessage());
+        }
+
+        try {
+            Protocols.validateProtocol(ArrayProtocol.class);
+        } catch (Exception e) {
+            assertEquals("Protocol method test does not take reference type as first argument.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDefiningProtocolAgainReturnsNewInstance () {
+        assertNotNull(Protocols.define(Reversable.class));
+    }
+
+    @Test
+    public void testDefineIfAbsent () {
+        assertNull("nothing is registered by define", Protocols.get(Registered.class));
+        Protocols.define(Registered.class);
+        assertNull(Protocols.get(Registered.class));
+
+        Protocol<Registered> registered = Protocols.defineIfAbsent(Registered.class);
+        assertSame(registered, Protocols.get(Registered.class));
+        assertSame(registered, Protocols.defineIfAbsent(Registered.class, ProtocolOptions.defaults()));
+
+        try {
+            Protocols.defineIfAbsent(NoArgsProtocol.class);
+            fail("invalid protocols are not registered");
+        } catch (IllegalArgumentException e) {
+            assertNull(Protocols.get(NoArgsProtocol.class));
+        }
+    }
+
+    @Test
+    public void testDefineAll () {
+        List<Class<?>> apis = new ArrayList<>();
+        apis.add(Batched.class);
+        apis.add(Batched.Inner.class);
+        apis.add(Batched.class);
+        List<Protocol<?>> defined = Protocols.defineAll(apis, ProtocolOptions.defaults());
+
+        assertEquals(3, defined.size());
+        for (int i = 0; i < apis.size(); i++) {
+            assertSame(Protocols.get(apis.get(i)), defined.get(i));
+            assertTrue(apis.get(i).isInstance(defined.get(i).getDispatcher()));
+        }
+    }
+
+    @Test
+    public void testConcurrentDefineIfAbsent () throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Protocol<?>> defined = new java.util.concurrent.CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                defined.add(Protocols.defineIfAbsent(Concurrent.class, ProtocolOptions.defaults()
+                    .withCodeGenerator(CodeGenerator.BYTECODE)));
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8, defined.size());
+        for (Protocol<?> protocol : defined) {
+            assertSame("the protocol is defined once", defined.get(0), protocol);
+        }
+    }
+
+    @Test
+    public void testExactMatchDispatch () {
+        reversable.extend(String.class, value -> reverseString((String) value));
+        assertEquals("String is reversed.", "cba", reversable.getDispatcher().reverse("abc"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTypeCanOnlyBeExtendedOnce () {
+        reversable.extend(Integer.class, v -> Integer.valueOf(reverseString(v.toString())));
+        assertEquals("Integer is reversed", 321, reversable.getDispatcher().reverse(123));
+        reversable.extend(Integer.class, v -> v);
+    }
+
+    @Test
+    public void testInterfaceDispatch () {
+        reversable.extend(CharSequence.class, v -> reverseString((CharSequence) v));
+        assertEquals("StringBuilder is reversed", "cba", reversable.getDispatcher().reverse(new StringBuilder("abc")));
+        assertEquals("StringBuffer is reversed", "cba", reversable.getDispatcher().reverse(new StringBuffer("abc")));
+    }
+
+    @Test
+    public void testNullDispatch () {
+        reversable.extend(Void.class, v -> "llun");
+        assertEquals("Constant is returned for void", "llun", reversable.getDispatcher().reverse(null));
+    }
+
+    @Test
+    public void testExtendInvalidatesCachedDispatch () {
+        reversable.extend(Object.class, v -> "object");
+        assertEquals("Object implementation is used", "object", reversable.getDispatcher().reverse("abc"));
+        assertEquals("Cached implementation is used", "object", reversable.getDispatcher().reverse("abc"));
+
+        reversable.extend(String.class, value -> reverseString((String) value));
+        assertEquals("Specific implementation replaces cached one", "cba", reversable.getDispatcher().reverse("abc"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExtendAfterMissingImplementation () {
+        try {
+            reversable.getDispatcher().reverse("abc");
+            fail("No implementation is registered");
+        } catch (IllegalArgumentException e) {
+            reversable.extend(String.class, value -> reverseString((String) value));
+            assertEquals("Implementation is used after a miss", "cba", reversable.getDispatcher().reverse("abc"));
+        }
+        reversable.getDispatcher().reverse(1);
+    }
+
+    @Test
+    public void testMissingImplementationIsCached () {
+        for (int i = 0; i < 2; i++) {
+            try {
+                reversable.getDispatcher().reverse(1);
+                fail("No implementation is registered");
+            } catch (NoImplementationException e) {
+                assertEquals("Protocol " + Reversable.class.getName() + " is not defined for java.lang.Integer",
+                    e.getMessage());
+                assertEquals(Integer.class, e.getDispatchType());
+                assertTrue(e.getStackTrace().length > 0);
+            }
+        }
+        assertEquals(1, reversable.getStatistics().getCachedTypes());
+    }
+
+    @Test
+    public void testStacklessFailures () {
+        Protocol<Reversable> stackless = Protocols.define(Reversable.class,
+            ProtocolOptions.defaults().withStacklessFailures(true));
+        try {
+            stackless.getDispatcher().reverse(1);
+            fail("No implementation is registered");
+        } catch (NoImplementationException e) {
+            assertEquals(0, e.getStackTrace().length);
+            assertEquals(Reversable.class, e.getProtocol());
+        }
+    }
+
+    @Test
+    public void testFallback () {
+        reversable.extend(String.class, v -> reverseString((String) v));
+        try {
+            reversable.getDispatcher().reverse(1);
+            fail("No implementation is registered");
+        } catch (NoImplementationException e) {
+            // expected
+        }
+
+        reversable.setFallback(v -> "fallback");
+        assertEquals("Cached missing implementation uses the fallback", "fallback",
+            reversable.getDispatcher().reverse(1));
+        assertEquals("fallback", reversable.getDispatcher().reverse(null));
+        assertEquals("cba", reversable.getDispatcher().reverse("abc"));
+
+        reversable.extend(Object.class, v -> "object");
+        assertEquals("Object takes precedence", "object", reversable.getDispatcher().reverse(1));
+
+        try {
+            reversable.setFallback(v -> "other");
+            fail("Fallback can only be set once");
+        } catch (IllegalStateException e) {
+            assertEquals("Protocol " + Reversable.class.getName() + " already has a fallback implementation.",
+                e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFrozenFallback () {
+        reversable.extend(String.class, v -> reverseString((String) v));
+        reversable.setFallback(v -> "fallback");
+        reversable.freeze();
+        assertEquals("cba", reversable.getDispatcher().reverse("abc"));
+        assertEquals("fallback", reversable.getDispatcher().reverse(1));
+        assertEquals("fallback", reversable.getDispatcher().reverse(1));
+    }
+
+    @Test
+    public void testSatisfies () {
+        reversable.extend(CharSequence.class, v -> reverseString((CharSequence) v));
+        assertTrue(reversable.satisfies(String.class));
+        assertTrue(reversable.satisfies(CharSequence.class));
+        assertTrue(reversable.satisfies((Object) "abc"));
+        assertFalse(reversable.satisfies(Integer.class));
+        assertFalse(reversable.satisfies((Object) 1));
+        assertFalse(reversable.satisfies((Object) null));
+
+        reversable.extend(Void.class, v -> "null");
+        assertTrue("Answer is updated by extend", reversable.satisfies((Object) null));
+        assertTrue(reversable.satisfies(Void.class));
+    }
+
+    @Test
+    public void testImplementationFor () {
+        Reversable implementation = v -> reverseString((CharSequence) v);
+        reversable.extend(CharSequence.class, implementation);
+        assertSame(implementation, reversable.implementationFor("abc").get());
+        assertFalse(reversable.implementationFor(1).isPresent());
+
+        reversable.setFallback(v -> "fallback");
+        assertEquals("fallback", reversable.implementationFor(1).get().reverse(1));
+
+        reversable.freeze();
+        assertSame(implementation, reversable.implementationFor(new StringBuilder()).get());
+    }
+
+    @Test
+    public void testDirectImplementations () {
+        Reversable self = v -> "self";
+        reversable.extend(Object.class, v -> "object");
+        assertEquals("Disabled by default", "object", reversable.getDispatcher().reverse(self));
+
+        Protocol<Reversable> direct = Protocols.define(
+            Reversable.class, ProtocolOptions.defaults().withDirectImplementations(true)
+        );
+        assertEquals("self", direct.getDispatcher().reverse(self));
+        assertTrue(direct.satisfies(self.getClass()));
+        assertSame(self, direct.implementationFor(self).get());
+
+        direct.extend(Object.class, v -> "object");
+        assertEquals("Takes precedence over registrations", "self", direct.getDispatcher().reverse(self));
+        assertEquals("object", direct.getDispatcher().reverse("abc"));
+    }
+
+    @Test
+    public void testBind () {
+        reversable.extend(CharSequence.class, v -> reverseString((CharSequence) v));
+        Reversable bound = reversable.bind(String.class);
+        assertEquals("cba", bound.reverse("abc"));
+        assertNotSame("Handle is not the dispatcher", reversable.getDispatcher(), bound);
+
+        reversable.extend(Integer.class, v -> "integer");
+        assertEquals("Unrelated extend keeps the implementation", "cba", bound.reverse("abc"));
+
+        reversable.extend(String.class, v -> "string");
+        assertEquals("Implementation is resolved again", "string", bound.reverse("abc"));
+    }
+
+    @Test
+    public void testBindDirectImplementation () {
+        Protocol<Reversable> direct = Protocols.define(
+            Reversable.class, ProtocolOptions.defaults().withDirectImplementations(true)
+        );
+        Reversable self = v -> "self";
+        assertEquals("self", direct.bind(self.getClass()).reverse(self));
+
+        direct.extend(Object.class, v -> "object");
+        assertEquals("Takes precedence over registrations", "self", direct.bind(self.getClass()).reverse(self));
+        assertEquals("object", direct.bind(String.class).reverse("abc"));
+    }
+
+    @Test(expected = NoImplementationException.class)
+    public void testBindWithoutImplementation () {
+        reversable.bind(String.class);
+    }
+
+    @Test
+    public void testFreeze () {
+        reversable.extend(CharSequence.class, v -> reverseString((CharSequence) v));
+        reversable.extend(String.class, value -> "string");
+        assertEquals("string", reversable.getDispatcher().reverse("abc"));
+        assertFalse(reversable.isFrozen());
+
+        reversable.freeze();
+        assertTrue(reversable.isFrozen());
+        assertEquals("Registered type is dispatched", "string", reversable.getDispatcher().reverse("abc"));
+        assertEquals("Interface is dispatched", "cba", reversable.getDispatcher().reverse(new StringBuilder("abc")));
+
+        try {
+            reversable.extend(Integer.class, v -> v);
+            fail("Frozen protocol cannot be extended");
+        } catch (IllegalStateException e) {
+            assertEquals("Protocol " + Reversable.class.getName() + " is frozen.", e.getMessage());
+        }
+
+        try {
+            reversable.getDispatcher().reverse(1);
+            fail("Integer is not dispatched");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFreezeTakesOverCachedResolutions () {
+        reversable.extend(CharSequence.class, v -> reverseString((CharSequence) v));
+        assertEquals("cba", reversable.getDispatcher().reverse(new StringBuilder("abc")));
+        assertEquals(1, reversable.getStatistics().getCachedTypes());
+
+        reversable.freeze();
+        ProtocolStatistics statistics = reversable.getStatistics();
+        assertEquals("registered and resolved types", 2, statistics.getCachedTypes());
+        assertTrue(statistics.getFootprint() > 0);
+        assertEquals("cba", reversable.getDispatcher().reverse(new StringBuilder("abc")));
+        assertEquals("cba", reversable.getDispatcher().reverse("abc"));
+        assertEquals(3, reversable.getStatistics().getCachedTypes());
+    }
+
+    @Test
+    public void testExtendInvalidatesSubtypesOnly () {
+        reversable.extend(Object.class, v -> "object");
+        reversable.getDispatcher().reverse("abc");
+        reversable.getDispatcher().reverse(1);
+        reversable.getDispatcher().reverse(new ArrayList<>());
+        assertEquals(3, reversable.getStatistics().getCachedTypes());
+
+        reversable.extend(CharSequence.class, v -> reverseString((CharSequence) v));
+        assertEquals("Only String is a subtype", 1, reversable.getStatistics().getLastInvalidations());
+        assertEquals(2, reversable.getStatistics().getCachedTypes());
+        assertEquals("cba", reversable.getDispatcher().reverse("abc"));
+        assertEquals("object", reversable.getDispatcher().reverse(1));
+
+        reversable.extend(Object[].class, v -> "array");
+        assertEquals(0, reversable.getStatistics().getLastInvalidations());
+        assertEquals(1, reversable.getStatistics().getInvalidations());
+        assertEquals("object", reversable.getDispatcher().reverse(new ArrayList<>()));
+        assertEquals("array", reversable.getDispatcher().reverse(new Object[0]));
+    }
+
+    @Test
+    public void testExtendAll () {
+        reversable.extend(Object.class, v -> "object");
+        assertEquals("object", reversable.getDispatcher().reverse("abc"));
+
+        Map<Class<?>, Reversable> implementations = new HashMap<>();
+        implementations.put(CharSequence.class, v -> reverseString((CharSequence) v));
+        implementations.put(Integer.class, v -> -(Integer) v);
+        reversable.extendAll(implementations);
+
+        assertEquals("Cached implementation is replaced", "cba", reversable.getDispatcher().reverse("abc"));
+        assertEquals(-1, reversable.getDispatcher().reverse(1));
+        assertEquals("object", reversable.getDispatcher().reverse(1L));
+    }
+
+    @Test
+    public void testExtendAllIsAtomic () {
+        reversable.extend(String.class, v -> "string");
+
+        Map<Class<?>, Reversable> implementations = new LinkedHashMap<>();
+        implementations.put(Integer.class, v -> "integer");
+        implementations.put(String.class, v -> "other");
+        try {
+            reversable.extendAll(implementations);
+            fail("String is already extended");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals("string", reversable.getDispatcher().reverse("abc"));
+        try {
+            reversable.getDispatcher().reverse(1);
+            fail("No implementation is registered when one of the types is a duplicate");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentExtend () throws InterruptedException {
+        Class<?>[] types = {
+            String.class, Integer.class, Long.class, Double.class, Short.class, Byte.class, Float.class,
+            Character.class, Boolean.class, StringBuilder.class, StringBuffer.class, ArrayList.class,
+            java.util.LinkedList.class, java.util.HashMap.class, java.util.TreeMap.class, java.util.HashSet.class
+        };
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (Class<?> type : types) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reversable.extend(type, v -> type.getName());
+                // Race dispatches against the other registrations
+                for (Class<?> other : types) {
+                    try {
+                        reversable.getDispatcher().reverse(other == String.class ? "" : null);
+                    } catch (IllegalArgumentException e) {
+                        // not registered yet
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Every registration is kept", String.class.getName(), reversable.getDispatcher().reverse(""));
+        assertEquals(Integer.class.getName(), reversable.getDispatcher().reverse(1));
+        assertEquals(java.util.HashSet.class.getName(), reversable.getDispatcher().reverse(new java.util.HashSet<>()));
+        assertEquals(StringBuffer.class.getName(), reversable.getDispatcher().reverse(new StringBuffer()));
+    }
+
+    public static interface Reversable {
+        public Object reverse (Object value);
+    }
+
+    private static String reverseString (CharSequence s) {
+        return new StringBuilder(s).reverse().toString();
+    }
+
+    public static interface NoArgsProtocol {
+        public void test ();
+    }
+
+    public static interface PrimitiveProtocol {
+        public void test (int test);
+    }
+
+    public static interface ArrayProtocol {
+        public void test (Object[] test);
+    }
+
+    public static interface Registered {
+        public Object test (Object test);
+    }
+
+    public static interface Batched {
+        public Object test (Object test);
+
+        public static interface Inner {
+            public void test (Object test, int value);
+        }
+    }
+
+    public static interface Concurrent {
+        public Object test (Object test);
+    }
+}
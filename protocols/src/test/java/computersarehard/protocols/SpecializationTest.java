@@ -0,0 +1,106 @@
+package computersarehard.protocols;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class SpecializationTest {
+    private Protocol<Describe> describe;
+
+    @Before
+    public void setup () {
+        describe = Protocols.define(Describe.class, ProtocolOptions.defaults().withSpecialization(10, 2));
+        describe.extend(Object.class, new ObjectDescribe());
+        describe.extend(Void.class, value -> "null");
+        describe.extend(String.class, value -> "string " + value);
+        describe.extend(Collection.class, value -> "collection " + ((Collection<?>) value).size());
+    }
+
+    @Test
+    public void testSpecializesAfterWarmup () {
+        assertNull("not specialized before warm-up", getSpecialization());
+        warmUp();
+
+        Object specialization = getSpecialization();
+        assertNotNull("specialized after warm-up", specialization);
+        assertTrue("specialization implements the protocol", specialization instanceof Describe);
+
+        assertEquals("string a", describe.getDispatcher().describe("a"));
+        assertEquals("collection 1", describe.getDispatcher().describe(new ArrayList<>(Arrays.asList(1))));
+        assertEquals("null", describe.getDispatcher().describe(null));
+        assertEquals("object 1", describe.getDispatcher().describe(1));
+        assertEquals("object 1.0", describe.getDispatcher().describe(1.0));
+    }
+
+    @Test
+    public void testExtendDiscardsSpecialization () {
+        warmUp();
+        assertNotNull(getSpecialization());
+
+        describe.extend(Integer.class, value -> "integer " + value);
+        assertNull("specialization is discarded", getSpecialization());
+        assertEquals("integer 1", describe.getDispatcher().describe(1));
+
+        warmUp();
+        assertNotNull("specialized again after warm-up", getSpecialization());
+        assertEquals("integer 1", describe.getDispatcher().describe(1));
+    }
+
+    @Test
+    public void testSpecializesInExecutor () {
+        List<Runnable> tasks = new ArrayList<>();
+        describe = Protocols.define(Describe.class, ProtocolOptions.defaults().withSpecialization(10, 2, tasks::add));
+        describe.extend(Object.class, new ObjectDescribe());
+        describe.extend(Void.class, value -> "null");
+        describe.extend(String.class, value -> "string " + value);
+        describe.extend(Collection.class, value -> "collection " + ((Collection<?>) value).size());
+
+        warmUp();
+        assertEquals("one specialization is submitted", 1, tasks.size());
+        assertNull("not specialized by the dispatching thread", getSpecialization());
+        assertEquals("string a", describe.getDispatcher().describe("a"));
+
+        tasks.get(0).run();
+        assertNotNull("specialized by the executor", getSpecialization());
+        assertEquals("string a", describe.getDispatcher().describe("a"));
+        assertEquals("object 1", describe.getDispatcher().describe(1));
+    }
+
+    @Test
+    public void testLinkable () {
+        assertTrue(Protocols.isLinkable(String.class, Describe.class));
+        assertTrue(Protocols.isLinkable(ObjectDescribe.class, Describe.class));
+        Describe lambda = value -> "";
+        assertFalse(Protocols.isLinkable(lambda.getClass(), Describe.class));
+        assertFalse(Protocols.isLinkable(String[].class, Describe.class));
+    }
+
+    private void warmUp () {
+        List<Object> values = Arrays.<Object>asList(1, 1, 1, 1.0, "a", new ArrayList<>(), null);
+        for (int i = 0; i < 3; i++) {
+            for (Object value : values) {
+                describe.getDispatcher().describe(value);
+            }
+        }
+    }
+
+    private Object getSpecialization () {
+        return ((Protocols.Dispatcher) describe.getDispatcher()).protocols$$getSpecialization();
+    }
+
+    public static interface Describe {
+        public String describe (Object value);
+    }
+
+    static class ObjectDescribe implements Describe {
+        @Override
+        public String describe (Object value) {
+            return "object " + value;
+        }
+    }
+}
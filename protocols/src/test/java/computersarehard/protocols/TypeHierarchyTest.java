@@ -0,0 +1,84 @@
+package computersarehard.protocols;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TypeHierarchyTest {
+    @Test
+    public void testOrder () {
+        assertEquals(Arrays.asList(Impl.class, Base.class, Left.class, Top.class, Right.class, Other.class,
+            Object.class), Arrays.asList(TypeHierarchy.of(Impl.class)));
+        assertEquals(Arrays.asList(Left.class, Top.class, Object.class), Arrays.asList(TypeHierarchy.of(Left.class)));
+        assertEquals(Arrays.asList(Object.class), Arrays.asList(TypeHierarchy.of(Object.class)));
+        assertSame("linearizations are shared", TypeHierarchy.of(Impl.class), TypeHierarchy.of(Impl.class));
+    }
+
+    @Test
+    public void testMatchesHierarchyWalk () {
+        Class<?>[] types = {
+            Impl.class, Base.class, Left.class, String.class, Integer.class, ArrayList.class, LinkedList.class,
+            HashMap.class, TreeMap.class, ConcurrentSkipListMap.class, String[].class, Void.class,
+            Collections.emptyList().getClass(), Serializable.class
+        };
+        for (Class<?> type : types) {
+            Set<Class<?>> expected = new LinkedHashSet<>();
+            walk(type, expected);
+            assertEquals(type.getName(), new ArrayList<>(expected), Arrays.asList(TypeHierarchy.of(type)));
+        }
+    }
+
+    /**
+     * The order a lookup used to visit types in: the type, its super-classes, then the interfaces of the type and of
+     * each super-class depth first and finally Object.
+     */
+    private static void walk (Class<?> type, Set<Class<?>> visited) {
+        visited.add(type);
+        for (Class<?> superclass = type.getSuperclass(); superclass != null && superclass != Object.class;
+            superclass = superclass.getSuperclass()) {
+            visited.add(superclass);
+        }
+        walkInterfaces(type, visited);
+        visited.add(Object.class);
+    }
+
+    private static void walkInterfaces (Class<?> type, Set<Class<?>> visited) {
+        if (type == null) {
+            return;
+        }
+        visited.add(type);
+        for (Class<?> i : type.getInterfaces()) {
+            walkInterfaces(i, visited);
+        }
+        walkInterfaces(type.getSuperclass(), visited);
+    }
+
+    private static interface Top {
+    }
+
+    private static interface Left extends Top {
+    }
+
+    private static interface Right extends Top {
+    }
+
+    private static interface Other {
+    }
+
+    private static class Base implements Right, Other {
+    }
+
+    private static class Impl extends Base implements Left, Right {
+    }
+}
@@ -0,0 +1,82 @@
+package computersarehard.protocols;
+
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class TypeProfileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndReplay () throws Exception {
+        Path file = folder.getRoot().toPath().resolve("types.profile");
+        Protocol<Describe> recorded = newProtocol(ProtocolOptions.defaults());
+        Describe dispatcher = recorded.getDispatcher();
+        dispatcher.describe(1);
+        dispatcher.describe(2L);
+        dispatcher.describe("a");
+        dispatcher.describe(new ArrayList<>());
+        Supplier<String> lambda = () -> "lambda";
+        dispatcher.describe(lambda);
+        TypeProfile.write(file, Collections.singletonList(recorded));
+
+        Protocol<Describe> replayed = newProtocol(ProtocolOptions.defaults());
+        assertEquals("the lambda is not recorded", 4, TypeProfile.replay(file, Collections.singletonList(replayed)));
+        assertEquals(4, replayed.getStatistics().getCachedTypes());
+        assertEquals("number 1", replayed.getDispatcher().describe(1));
+        assertEquals(4, replayed.getStatistics().getCachedTypes());
+
+        Protocol<Describe> frozen = newProtocol(ProtocolOptions.defaults());
+        frozen.freeze();
+        assertEquals(4, TypeProfile.replay(file, Collections.singletonList(frozen)));
+        assertEquals("object a", frozen.getDispatcher().describe("a"));
+    }
+
+    @Test
+    public void testReplaySkipsMissingTypes () throws Exception {
+        Path file = folder.getRoot().toPath().resolve("types.profile");
+        assertEquals("there is no profile yet", 0, TypeProfile.replay(file, Collections.emptyList()));
+
+        // Format 1: names, then the index of each protocol's interface and its types' indexes.
+        List<String> names = Arrays.asList(Describe.class.getName(), "com.example.Removed", Integer.class.getName());
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(0x50524f46);
+            out.writeInt(1);
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeInt(2);
+            out.writeInt(1);
+            out.writeInt(2);
+        }
+        Protocol<Describe> protocol = newProtocol(ProtocolOptions.defaults().withBackgroundGeneration(Runnable::run));
+        assertEquals(1, TypeProfile.replay(file, Collections.singletonList(protocol)));
+        assertEquals(1, protocol.getStatistics().getCachedTypes());
+    }
+
+    private static Protocol<Describe> newProtocol (ProtocolOptions options) {
+        Protocol<Describe> protocol = Protocols.define(Describe.class, options);
+        protocol.extend(Number.class, value -> "number " + value);
+        protocol.extend(Object.class, value -> "object " + value);
+        return protocol;
+    }
+
+    public static interface Describe {
+        public String describe (Object value);
+    }
+}
@@ -0,0 +1,185 @@
+package computersarehard.protocols;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that dispatch never blocks a virtual thread inside a monitor, which pins the virtual thread to its carrier
+ * thread. The library's own classes are checked for monitors. The stress test, which runs on JDK 21 and later only,
+ * also covers the JDK and Javassist code dispatch calls into, with specializations generated off the virtual threads.
+ */
+public class VirtualThreadTest {
+    private static final int THREADS = 100_000;
+    private static final int TYPES = 1_000;
+
+    @Test
+    public void testDispatchDoesNotPin () throws Exception {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        Assume.assumeNotNull(executor);
+
+        List<Protocol<Describe>> protocols = new ArrayList<>();
+        for (ProtocolOptions options : new ProtocolOptions[] {
+            ProtocolOptions.defaults(),
+            ProtocolOptions.defaults().withCodeGenerator(CodeGenerator.BYTECODE).withInlineCacheSize(2)
+                .withSpecialization(1000, 4),
+            // Javassist takes locks, so the specialization is generated on a platform thread.
+            ProtocolOptions.defaults().withSpecialization(1000, 4, ForkJoinPool.commonPool()),
+            ProtocolOptions.defaults().withEngine(DispatchEngine.INVOKEDYNAMIC).withCacheCapacity(100,
+                EvictionPolicy.SECOND_CHANCE)
+        }) {
+            protocols.add(Protocols.define(Describe.class, options));
+        }
+        Protocol<Describe> frozen = Protocols.define(Describe.class);
+        protocols.add(frozen);
+        for (Protocol<Describe> protocol : protocols) {
+            protocol.extend(Marker.class, value -> "marker");
+        }
+        frozen.freeze();
+        ProtocolBundle bundle = Protocols.bundle(Describe.class);
+        bundle.get(Describe.class).extend(Marker.class, value -> "marker");
+
+        // New classes keep missing the caches. Consecutive threads share a class so misses race with each other.
+        List<Object> values = new ArrayList<>();
+        for (Class<?> type : makeTypes()) {
+            values.add(type.getConstructor().newInstance());
+        }
+
+        AtomicInteger dispatched = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+            for (int i = 0; i < THREADS; i++) {
+                Object value = values.get(i * TYPES / THREADS);
+                Protocol<Describe> protocol = protocols.get(i % protocols.size());
+                executor.execute(() -> {
+                    try {
+                        assertEquals("marker", protocol.getDispatcher().describe(value));
+                        assertEquals("marker", bundle.resolve(value).get(Describe.class).describe(value));
+                        dispatched.incrementAndGet();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+            recording.stop();
+
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertEquals(THREADS, dispatched.get());
+
+            Path file = Files.createTempFile("pinning", ".jfr");
+            try {
+                recording.dump(file);
+                List<RecordedEvent> pinned = RecordingFile.readAllEvents(file);
+                assertTrue("virtual threads were pinned: " + pinned, pinned.isEmpty());
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testLibraryHasNoMonitors () throws Exception {
+        // Checks the compiled classes, including generated dispatchers' superclasses, rather than the sources.
+        Path classes = Paths.get(Protocols.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Assume.assumeTrue("classes are packaged", Files.isDirectory(classes));
+        ClassPool pool = new ClassPool(true);
+        List<String> monitors = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(classes)) {
+            for (Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(".class"))::iterator) {
+                CtClass type;
+                try (InputStream in = Files.newInputStream(file)) {
+                    type = pool.makeClass(in);
+                }
+                for (Object m : type.getClassFile().getMethods()) {
+                    MethodInfo method = (MethodInfo) m;
+                    if ((method.getAccessFlags() & AccessFlag.SYNCHRONIZED) != 0) {
+                        monitors.add(type.getName() + "." + method.getName());
+                    }
+                    CodeAttribute code = method.getCodeAttribute();
+                    for (CodeIterator i = code != null ? code.iterator() : null; i != null && i.hasNext();) {
+                        if (i.byteAt(i.next()) == Opcode.MONITORENTER) {
+                            monitors.add(type.getName() + "." + method.getName());
+                        }
+                    }
+                }
+            }
+        }
+        assertEquals("methods entering a monitor", Collections.emptyList(), monitors);
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor () throws Exception {
+        Method factory;
+        try {
+            factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        return (ExecutorService) factory.invoke(null);
+    }
+
+    private static List<Class<?>> makeTypes () throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.insertClassPath(new ClassClassPath(VirtualThreadTest.class));
+        CtClass marker = pool.get(Marker.class.getName());
+        Loader loader = new Loader(VirtualThreadTest.class.getClassLoader());
+        List<Class<?>> types = new ArrayList<>();
+        for (int i = 0; i < TYPES; i++) {
+            CtClass type = pool.makeClass(VirtualThreadTest.class.getName() + "$Generated" + i);
+            type.addInterface(marker);
+            type.addConstructor(CtNewConstructor.defaultConstructor(type));
+            types.add(loader.define(type.getName(), type.toBytecode()));
+        }
+        return types;
+    }
+
+    private static final class Loader extends ClassLoader {
+        Loader (ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define (String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    public static interface Marker {
+    }
+
+    public static interface Describe {
+        public String describe (Object value);
+    }
+}